@@ -0,0 +1,36 @@
+package wfc.bench;
+
+import org.openjdk.jmh.annotations.*;
+import wfc.TextureMap;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a tileset. {@link #load} maps its compiled {@code .wfct}, which the setup makes sure is up to date;
+ * {@link #parse} runs with the cache disabled, decoding the atlas, cutting and rotating textures, computing sockets and
+ * compiling the rules every time.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class LoadBenchmark {
+    @Param({"Platformer", "pipes"})
+    String tileset;
+
+    @Setup(Level.Trial)
+    public void compile() throws IOException {
+        TextureMap.fromFileConfig(tileset);
+    }
+
+    @Benchmark
+    public TextureMap load() throws IOException {
+        return TextureMap.fromFileConfig(tileset);
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dwfc.tilesetCache=false")
+    public TextureMap parse() throws IOException {
+        return TextureMap.fromFileConfig(tileset);
+    }
+}
@@ -0,0 +1,53 @@
+package wfc.bench;
+
+import org.openjdk.jmh.annotations.*;
+import wfc.RuleSet;
+import wfc.SolveOptions;
+import wfc.Solver;
+import wfc.TextureMap;
+import wfc.Wave;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collapsing the centre cell of a fresh grid and propagating it, the most expensive single step of a solve. A collapse
+ * takes far less time than building the grid it needs, so every iteration builds a batch of grids outside the
+ * measurement and one invocation collapses all of them, reported per collapse.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class PropagationBenchmark {
+    private static final int GRIDS = 16;
+
+    @Param({"16", "64", "256"})
+    int size;
+
+    @Param({"SUPPORT", "BITSET"})
+    SolveOptions.Propagation propagation;
+
+    private RuleSet rules;
+    private final Wave[] centres = new Wave[GRIDS];
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        rules = TextureMap.fromFileConfig("Platformer").getRules();
+    }
+
+    @Setup(Level.Iteration)
+    public void grids() {
+        for (int i = 0; i < GRIDS; i++) {
+            Solver solver = new Solver(rules, new SolveOptions(size, size, 42).propagation(propagation));
+            centres[i] = solver.getContext().at(size / 2, size / 2);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GRIDS)
+    public Wave collapse() {
+        for (Wave centre : centres)
+            centre.collapse();
+        return centres[GRIDS - 1];
+    }
+}
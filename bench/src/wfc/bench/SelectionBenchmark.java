@@ -0,0 +1,51 @@
+package wfc.bench;
+
+import org.openjdk.jmh.annotations.*;
+import wfc.RuleSet;
+import wfc.SolveOptions;
+import wfc.Solver;
+import wfc.TextureMap;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One step on a half solved grid: taking the lowest entropy cell from the queue, picking its reality and collapsing it,
+ * the queue updates of the propagation included. A step changes the grid it runs on, so like
+ * {@link PropagationBenchmark} every iteration solves a batch of grids halfway outside the measurement and one
+ * invocation steps each of them once, reported per step.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SelectionBenchmark {
+    private static final int GRIDS = 16;
+
+    @Param({"16", "64", "256"})
+    int size;
+
+    private RuleSet rules;
+    private final Solver[] solvers = new Solver[GRIDS];
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        rules = TextureMap.fromFileConfig("Platformer").getRules();
+    }
+
+    @Setup(Level.Iteration)
+    public void grids() {
+        for (int g = 0; g < GRIDS; g++) {
+            solvers[g] = new Solver(rules, new SolveOptions(size, size, 42 + g));
+            for (int i = size * size / 2; i > 0 && solvers[g].step(); i--) ;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GRIDS)
+    public boolean step() {
+        boolean stepped = true;
+        for (Solver solver : solvers)
+            stepped &= solver.step();
+        return stepped;
+    }
+}
@@ -0,0 +1,39 @@
+package wfc.bench;
+
+import org.openjdk.jmh.annotations.*;
+import wfc.RuleSet;
+import wfc.SolveOptions;
+import wfc.Solver;
+import wfc.TextureMap;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Seeded solves from an empty grid to the last collapse, grid construction included.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class SolveBenchmark {
+    @Param({"Platformer", "pipes"})
+    String tileset;
+
+    @Param({"16", "64"})
+    int size;
+
+    @Param({"0", "10000"})
+    int trailDepth;
+
+    private RuleSet rules;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        rules = TextureMap.fromFileConfig(tileset).getRules();
+    }
+
+    @Benchmark
+    public int[] solve() {
+        return new Solver(rules, new SolveOptions(size, size, 42).backtracking(trailDepth)).solve();
+    }
+}
@@ -0,0 +1,63 @@
+package wfc;
+
+/**
+ * Walker's alias method over the realities of one domain: after a linear build, drawing a reality in proportion to its
+ * weight takes one random number and at most two array reads.
+ */
+final class AliasTable {
+    private final int[] ids, alias;
+    private final double[] threshold;
+
+    /**
+     * Built with Vose's variant, which keeps small and large buckets on two stacks.
+     */
+    AliasTable(long[] domain, RuleSet rules) {
+        int n = 0;
+        for (long word : domain)
+            n += Long.bitCount(word);
+        ids = new int[n];
+        alias = new int[n];
+        threshold = new double[n];
+        long total = 0;
+        for (int w = 0, i = 0; w < domain.length; w++)
+            for (long bits = domain[w]; bits != 0; bits &= bits - 1) {
+                ids[i] = (w << 6) + Long.numberOfTrailingZeros(bits);
+                total += rules.weight(ids[i++]);
+            }
+
+        int[] small = new int[n], large = new int[n];
+        int smalls = 0, larges = 0;
+        for (int i = 0; i < n; i++) {
+            // Without any weight every reality is as likely
+            threshold[i] = total > 0 ? (double) rules.weight(ids[i]) * n / total : 1;
+            alias[i] = i;
+            if (threshold[i] < 1)
+                small[smalls++] = i;
+            else
+                large[larges++] = i;
+        }
+        while (smalls > 0 && larges > 0) {
+            int s = small[--smalls], l = large[--larges];
+            alias[s] = l;
+            threshold[l] -= 1 - threshold[s];
+            if (threshold[l] < 1)
+                small[smalls++] = l;
+            else
+                large[larges++] = l;
+        }
+        // What is left over is 1 up to rounding
+        while (smalls > 0)
+            threshold[small[--smalls]] = 1;
+        while (larges > 0)
+            threshold[large[--larges]] = 1;
+    }
+
+    /**
+     * @param u uniform in [0, 1), its integer part after scaling picks the bucket and the fraction the side
+     */
+    int sample(double u) {
+        double scaled = u * ids.length;
+        int i = (int) scaled;
+        return scaled - i < threshold[i] ? ids[i] : ids[alias[i]];
+    }
+}
@@ -0,0 +1,165 @@
+package wfc;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ * Generates many maps from one shared {@link RuleSet}. Jobs are fanned out over a fork-join pool, each with its own
+ * seed derived from the base seed, and handed to the caller in completion order.
+ */
+public class BatchGenerator {
+    private final RuleSet rules;
+    private final int width, height, trailDepth;
+    private SolverListener listener = SolverListener.NONE;
+    private Constraints constraints;
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        if (args.length < 4) {
+            System.err.println("Usage: BatchGenerator <tileset> <width>[x<height>] <count> <seed> [threads] [trailDepth] [constraints]");
+            System.exit(1);
+        }
+        TextureMap tm = TextureMap.fromFileConfig(args[0]);
+        String[] size = args[1].split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = size.length > 1 ? Integer.parseInt(size[1]) : width;
+        int count = Integer.parseInt(args[2]);
+        long seed = Long.parseLong(args[3]);
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+        int trailDepth = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+
+        SolverMetrics metrics = new SolverMetrics();
+        BatchGenerator batch = new BatchGenerator(tm.getRules(), width, height, trailDepth).listener(metrics);
+        if (args.length > 6)
+            batch.constraints(Constraints.read(Paths.get(args[6]), tm.getRules(), width, height));
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)), false);
+        long[] totals = new long[2];
+        long start = System.nanoTime();
+        batch.run(count, seed, threads, r -> {
+            totals[0] += r.getBacktracks();
+            totals[1] += r.getRestarts();
+            out.println(r);
+            out.flush();
+        });
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.format("Generated %d maps of %dx%d in %.2fs on %d threads (%.1f jobs/s, %d backtracks, %d restarts)%n",
+                count, width, height, seconds, threads, count / seconds, totals[0], totals[1]);
+        System.err.print(metrics.summary());
+    }
+
+    public BatchGenerator(RuleSet rules, int width, int height) {
+        this(rules, width, height, 0);
+    }
+
+    public BatchGenerator(RuleSet rules, int width, int height, int trailDepth) {
+        this.rules = rules;
+        this.width = width;
+        this.height = height;
+        this.trailDepth = trailDepth;
+    }
+
+    /**
+     * Listens to every job, from the pool threads, so the listener has to be thread safe.
+     */
+    public BatchGenerator listener(SolverListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Applies the same constraints to every job.
+     */
+    public BatchGenerator constraints(Constraints constraints) {
+        this.constraints = constraints;
+        return this;
+    }
+
+    public Result generate(int job, long baseSeed) {
+        long seed = SolveOptions.derivedSeed(baseSeed, job);
+        long start = System.nanoTime();
+        Solver solver = new Solver(rules, new SolveOptions(width, height, seed).backtracking(trailDepth).listener(listener));
+        if (constraints != null)
+            solver.constrain(constraints);
+        int[] ids = solver.solve();
+        return new Result(job, seed, ids, System.nanoTime() - start, solver.getBacktracks(), solver.getRestarts());
+    }
+
+    public void run(int count, long baseSeed, int threads, Consumer<Result> sink) throws InterruptedException, ExecutionException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            ExecutorCompletionService<Result> done = new ExecutorCompletionService<>(pool);
+            for (int job = 0; job < count; job++) {
+                int j = job;
+                done.submit(() -> generate(j, baseSeed));
+            }
+            for (int i = 0; i < count; i++)
+                sink.accept(done.take().get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    public static class Result {
+        private final int job;
+        private final long seed, nanos;
+        private final int[] ids;
+        private final int backtracks, restarts;
+
+        Result(int job, long seed, int[] ids, long nanos, int backtracks, int restarts) {
+            this.job = job;
+            this.seed = seed;
+            this.ids = ids;
+            this.nanos = nanos;
+            this.backtracks = backtracks;
+            this.restarts = restarts;
+        }
+
+        public int getJob() {
+            return job;
+        }
+
+        public long getSeed() {
+            return seed;
+        }
+
+        public int[] getIds() {
+            return ids;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public int getBacktracks() {
+            return backtracks;
+        }
+
+        public int getRestarts() {
+            return restarts;
+        }
+
+        public int getContradictions() {
+            int n = 0;
+            for (int id : ids)
+                if (id < 0) n++;
+            return n;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(job).append(' ').append(seed).append(' ').append(getContradictions()).append(' ');
+            for (int id : ids)
+                sb.append(id).append(',');
+            sb.setLength(sb.length() - 1);
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package wfc;
+
+/**
+ * Propagation without per-cell counters. A changed cell is queued once, and draining it intersects each neighbour
+ * with the union of what the remaining realities allow on that edge. Slower per ban than {@link SupportPropagator},
+ * but it needs no memory beyond the domains, which is what lets very large maps fit.
+ */
+class BitsetPropagator extends Propagator {
+    int[] queue = new int[64];
+    int head, tail;
+    final long[] queued;
+    private final long[] domain, allowed, neighbourDomain, outside;
+
+    BitsetPropagator(SolveContext ctx, boolean keepTrail) {
+        super(ctx, keepTrail);
+        this.queued = new long[(ctx.cells() + 63) >>> 6];
+        this.domain = new long[rules.words()];
+        this.allowed = new long[rules.words()];
+        this.neighbourDomain = new long[rules.words()];
+        this.outside = new long[rules.words()];
+    }
+
+    @Override
+    void ban(int cell, int id) {
+        if (!ctx.remove(cell, id)) return;
+        if (!trail(cell, id)) return;
+        if ((queued[cell >>> 6] & (1L << cell)) != 0) return;
+        queued[cell >>> 6] |= 1L << cell;
+        if (tail - head == queue.length) {
+            int[] grown = new int[queue.length * 2];
+            for (int i = 0; i < queue.length; i++)
+                grown[i] = queue[(head + i) & (queue.length - 1)];
+            queue = grown;
+            tail -= head;
+            head = 0;
+        }
+        queue[tail++ & (queue.length - 1)] = cell;
+        if (tail - head > queueHighWater)
+            queueHighWater = tail - head;
+    }
+
+    @Override
+    void drain(boolean stopOnContradiction) {
+        while (head != tail) {
+            if (contradiction && stopOnContradiction) return;
+            int cell = queue[head++ & (queue.length - 1)];
+            queued[cell >>> 6] &= ~(1L << cell);
+            // A cell emptied after it was queued restricts nothing, so the contradiction stays local
+            if (ctx.count(cell) == 0) continue;
+            visited++;
+            ctx.touched(cell);
+            ctx.readDomain(cell, domain);
+            for (int edge = 0; edge < rules.edges(); edge++) {
+                int neighbour = ctx.neighbour(cell, edge);
+                if (neighbour < 0) continue;
+                rules.allowedNeighbours(domain, edge, allowed);
+                ctx.readDomain(neighbour, neighbourDomain);
+                if (!DomainKernel.INSTANCE.andNot(neighbourDomain, allowed, outside)) continue;
+                for (int w = 0; w < outside.length; w++)
+                    for (long bits = outside[w]; bits != 0; bits &= bits - 1)
+                        ban(neighbour, (w << 6) + Long.numberOfTrailingZeros(bits));
+            }
+        }
+    }
+
+    @Override
+    void unpropagate(int entry) {
+    }
+
+    @Override
+    void clearPending() {
+        while (head != tail) {
+            int cell = queue[head++ & (queue.length - 1)];
+            queued[cell >>> 6] &= ~(1L << cell);
+        }
+        head = tail = 0;
+    }
+}
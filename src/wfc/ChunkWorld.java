@@ -0,0 +1,208 @@
+package wfc;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An unbounded world solved one fixed-size chunk at a time, on demand. Each chunk is seeded from (world seed, chunk x,
+ * chunk y) and its border cells are restricted to what fits next to the edges of neighbouring chunks that already
+ * exist, so chunks join seamlessly. Chunk contents therefore depend on the order in which they are first visited.
+ * <p>
+ * Generated chunks live in an LRU cache of bounded size. With a spill directory, evicted chunks are written there and
+ * read back, so memory stays flat however far the world is explored. Spill files are named after a hash of the world
+ * seed, chunk size and rules and start with those, so worlds can share a directory and a file of another world is
+ * refused. Without a spill directory an evicted chunk is gone for good: solved again it would be fitted to whatever
+ * neighbours happen to be cached and no longer match those it was fitted to before, so asking for it, or generating a
+ * chunk next to it, throws instead. Its key is remembered for that, so memory then grows by a few bytes per chunk.
+ */
+public class ChunkWorld {
+    private static final int SPILL_MAGIC = 0x57464343;
+
+    private final RuleSet rules;
+    private final int chunkSize, trailDepth;
+    private final long worldSeed;
+    private final Path spillDir;
+    private final Map<Long, int[]> cache;
+    // Keys of chunks evicted without a spill directory, null with one
+    private final Set<Long> evicted;
+    private final long fingerprint;
+    private final String world;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 7) {
+            System.err.println("Usage: ChunkWorld <tileset> <chunkSize> <seed> <x> <y> <width> <height> [spillDir|-] [trailDepth]");
+            System.exit(1);
+        }
+        TextureMap tm = TextureMap.fromFileConfig(args[0]);
+        int chunkSize = Integer.parseInt(args[1]);
+        long seed = Long.parseLong(args[2]);
+        long x0 = Long.parseLong(args[3]), y0 = Long.parseLong(args[4]);
+        int width = Integer.parseInt(args[5]), height = Integer.parseInt(args[6]);
+        Path spill = args.length > 7 && !args[7].equals("-") ? Paths.get(args[7]) : null;
+        int trailDepth = args.length > 8 ? Integer.parseInt(args[8]) : 10_000;
+
+        // Rows are printed one after the other: a band of chunks and the one above it, whose chunks are still looked up
+        // as neighbours while the band is generated, have to stay cached
+        int band = (int) (Math.floorDiv(x0 + width - 1, chunkSize) - Math.floorDiv(x0, chunkSize)) + 1;
+        ChunkWorld world = new ChunkWorld(tm.getRules(), chunkSize, seed, Math.max(64, 2 * band + 1), spill, trailDepth);
+        for (long y = y0; y < y0 + height; y++) {
+            StringBuilder sb = new StringBuilder();
+            for (long x = x0; x < x0 + width; x++)
+                sb.append(world.getTile(x, y)).append(',');
+            sb.setLength(sb.length() - 1);
+            System.out.println(sb);
+        }
+    }
+
+    /**
+     * @param cachedChunks chunks kept in memory, at least 5: a chunk being generated and its four neighbours. Without a
+     *                     spill directory, visiting rows of regions {@code n} chunks wide one after the other takes
+     *                     {@code 2n + 1}
+     * @param spillDir     where evicted chunks are written to, or null to keep them only in memory
+     */
+    public ChunkWorld(RuleSet rules, int chunkSize, long worldSeed, int cachedChunks, Path spillDir, int trailDepth) throws IOException {
+        if (cachedChunks < 5)
+            throw new IllegalArgumentException("At least 5 chunks must be cached, not " + cachedChunks);
+        this.rules = rules;
+        this.chunkSize = chunkSize;
+        this.worldSeed = worldSeed;
+        this.spillDir = spillDir;
+        this.trailDepth = trailDepth;
+        this.evicted = spillDir == null ? new HashSet<>() : null;
+        this.fingerprint = rules.fingerprint();
+        this.world = Long.toHexString(SolveOptions.derivedSeed(SolveOptions.derivedSeed(worldSeed, chunkSize) ^ fingerprint, 0));
+        if (spillDir != null)
+            Files.createDirectories(spillDir);
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+                if (size() <= cachedChunks) return false;
+                spill(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    public static long chunkSeed(long worldSeed, int cx, int cy) {
+        return SolveOptions.derivedSeed(SolveOptions.derivedSeed(worldSeed, cx), cy);
+    }
+
+    private static long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getTile(long x, long y) {
+        int[] chunk = getChunk((int) Math.floorDiv(x, chunkSize), (int) Math.floorDiv(y, chunkSize));
+        return chunk[Math.floorMod(y, chunkSize) * chunkSize + Math.floorMod(x, chunkSize)];
+    }
+
+    /**
+     * @return reality ids of the chunk in row-major order, generating it first if it never existed
+     * @throws IllegalStateException if the chunk, or one next to it that it would have to fit, was evicted without a
+     *                               spill directory
+     */
+    public synchronized int[] getChunk(int cx, int cy) {
+        int[] chunk = peek(cx, cy);
+        if (chunk == null) {
+            chunk = generate(cx, cy);
+            cache.put(key(cx, cy), chunk);
+        }
+        return chunk;
+    }
+
+    private int[] peek(int cx, int cy) {
+        long key = key(cx, cy);
+        int[] chunk = cache.get(key);
+        if (chunk == null && spillDir != null) {
+            chunk = unspill(cx, cy);
+            if (chunk != null)
+                cache.put(key, chunk);
+        } else if (chunk == null && spillDir == null && evicted.contains(key)) {
+            throw new IllegalStateException(String.format("Chunk %d,%d was evicted without a spill directory", cx, cy));
+        }
+        return chunk;
+    }
+
+    private int[] generate(int cx, int cy) {
+        Solver solver = new Solver(rules, new SolveOptions(chunkSize, chunkSize, chunkSeed(worldSeed, cx, cy)).backtracking(trailDepth));
+        int last = chunkSize - 1;
+        int[] top = peek(cx, cy - 1), right = peek(cx + 1, cy), bottom = peek(cx, cy + 1), left = peek(cx - 1, cy);
+        long[] allowed = new long[rules.words()];
+        for (int i = 0; i < chunkSize; i++) {
+            constrainBorder(solver, top, i, last, i, 0, Stencil.TOP, allowed);
+            constrainBorder(solver, right, 0, i, last, i, Stencil.RIGHT, allowed);
+            constrainBorder(solver, bottom, i, 0, i, last, Stencil.BOTTOM, allowed);
+            constrainBorder(solver, left, last, i, 0, i, Stencil.LEFT, allowed);
+        }
+        return solver.solve();
+    }
+
+    private void constrainBorder(Solver solver, int[] neighbour, int nx, int ny, int x, int y, int edge, long[] allowed) {
+        if (neighbour == null) return;
+        int id = neighbour[ny * chunkSize + nx];
+        if (id < 0) return;
+        // Whatever may lie next to the neighbouring tile, looking back at this chunk
+        rules.allowedNeighbours(rules.singleton(id), rules.opposite(edge), allowed);
+        solver.constrain(x, y, allowed);
+    }
+
+    private Path spillFile(long key) {
+        return spillDir.resolve(String.format("chunk_%s_%d_%d.bin", world, (int) (key >> 32), (int) key));
+    }
+
+    /**
+     * Writes the chunk through a temporary file, replacing what an earlier run may have left under the same name.
+     */
+    private void spill(long key, int[] chunk) {
+        if (spillDir == null) {
+            evicted.add(key);
+            return;
+        }
+        Path file = spillFile(key);
+        try {
+            Path tmp = Files.createTempFile(spillDir, file.getFileName().toString(), ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                    out.writeInt(SPILL_MAGIC);
+                    out.writeLong(worldSeed);
+                    out.writeInt(chunkSize);
+                    out.writeLong(fingerprint);
+                    for (int id : chunk)
+                        out.writeInt(id);
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int[] unspill(int cx, int cy) {
+        Path file = spillFile(key(cx, cy));
+        if (!Files.exists(file)) return null;
+        int[] chunk = new int[chunkSize * chunkSize];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != SPILL_MAGIC || in.readLong() != worldSeed || in.readInt() != chunkSize
+                    || in.readLong() != fingerprint)
+                throw new IOException(file + " belongs to another world");
+            for (int i = 0; i < chunk.length; i++)
+                chunk[i] = in.readInt();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return chunk;
+    }
+}
@@ -0,0 +1,164 @@
+package wfc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A set of (cell, allowed realities) restrictions for one grid size, such as a painted layout or a border that has to
+ * be Empty. {@link Solver#constrain(Constraints)} applies all of them and propagates once.
+ * <p>
+ * As text, one restriction per line: {@code <x>[-<x2>] <y>[-<y2>] [<z>[-<z2>]] <reality>[,<reality>...]} with
+ * inclusive ranges, so {@code 0-511 0 Empty} keeps the top row of a 512 wide grid empty. Without z the first layer is
+ * meant. Blank lines and lines starting with {@code #} are skipped. A cell restricted more than once keeps what all of
+ * its restrictions allow.
+ */
+public class Constraints {
+    private final int width, height, depth, words;
+    private int[] cells = new int[16];
+    // words longs per restriction
+    private long[] domains;
+    private int size;
+
+    public Constraints(RuleSet rules, int width, int height) {
+        this(rules, width, height, 1);
+    }
+
+    public Constraints(RuleSet rules, int width, int height, int depth) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.words = rules.words();
+        this.domains = new long[16 * words];
+    }
+
+    public static Constraints read(Path path, RuleSet rules, int width, int height) throws IOException {
+        return read(path, rules, width, height, 1);
+    }
+
+    public static Constraints read(Path path, RuleSet rules, int width, int height, int depth) throws IOException {
+        Map<String, Integer> ids = new HashMap<>();
+        for (int id = 0; id < rules.size(); id++)
+            ids.put(rules.name(id), id);
+        Constraints constraints = new Constraints(rules, width, height, depth);
+        long[] allowed = new long[rules.words()];
+        try (BufferedReader in = Files.newBufferedReader(path)) {
+            int lineNumber = 0;
+            for (String line; (line = in.readLine()) != null; ) {
+                lineNumber++;
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] fields = line.split("\\s+");
+                if (fields.length != 3 && fields.length != 4)
+                    throw new IOException(String.format("%s:%d: expected <x> <y> [<z>] <realities>", path, lineNumber));
+                Arrays.fill(allowed, 0L);
+                for (String name : fields[fields.length - 1].split(",")) {
+                    Integer id = ids.get(name);
+                    if (id == null)
+                        throw new IOException(String.format("%s:%d: unknown reality %s", path, lineNumber, name));
+                    allowed[id >>> 6] |= 1L << id;
+                }
+                try {
+                    int[] xs = range(fields[0]), ys = range(fields[1]);
+                    int[] zs = fields.length == 4 ? range(fields[2]) : new int[]{0, 0};
+                    constraints.fill(xs[0], ys[0], zs[0], xs[1], ys[1], zs[1], allowed);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(String.format("%s:%d: %s", path, lineNumber, e.getMessage()));
+                }
+            }
+        }
+        return constraints;
+    }
+
+    private static int[] range(String field) {
+        int dash = field.indexOf('-', 1);
+        int from = Integer.parseInt(dash < 0 ? field : field.substring(0, dash));
+        int to = dash < 0 ? from : Integer.parseInt(field.substring(dash + 1));
+        return new int[]{from, to};
+    }
+
+    public Constraints add(int x, int y, long[] allowed) {
+        return add(x, y, 0, allowed);
+    }
+
+    public Constraints add(int x, int y, int z, long[] allowed) {
+        if (x < 0 || y < 0 || z < 0 || x >= width || y >= height || z >= depth)
+            throw new IllegalArgumentException(String.format("(%d,%d,%d) is outside the %dx%dx%d grid", x, y, z, width, height, depth));
+        if (allowed.length != words)
+            throw new IllegalArgumentException(String.format("Domain of %d words, rules have %d", allowed.length, words));
+        if (size == cells.length) {
+            cells = Arrays.copyOf(cells, size * 2);
+            domains = Arrays.copyOf(domains, size * 2 * words);
+        }
+        cells[size] = (z * height + y) * width + x;
+        System.arraycopy(allowed, 0, domains, size++ * words, words);
+        return this;
+    }
+
+    /**
+     * Restricts every cell of the rectangle from (x0, y0) to (x1, y1), both inclusive.
+     */
+    public Constraints fill(int x0, int y0, int x1, int y1, long[] allowed) {
+        return fill(x0, y0, 0, x1, y1, 0, allowed);
+    }
+
+    /**
+     * Restricts every cell of the box from (x0, y0, z0) to (x1, y1, z1), all inclusive.
+     */
+    public Constraints fill(int x0, int y0, int z0, int x1, int y1, int z1, long[] allowed) {
+        if (x0 > x1 || y0 > y1 || z0 > z1)
+            throw new IllegalArgumentException(String.format("Empty range (%d,%d,%d)-(%d,%d,%d)", x0, y0, z0, x1, y1, z1));
+        for (int z = z0; z <= z1; z++)
+            for (int y = y0; y <= y1; y++)
+                for (int x = x0; x <= x1; x++)
+                    add(x, y, z, allowed);
+        return this;
+    }
+
+    /**
+     * Restricts the cells along all four edges of the grid, in every layer.
+     */
+    public Constraints border(long[] allowed) {
+        int z1 = depth - 1;
+        fill(0, 0, 0, width - 1, 0, z1, allowed);
+        if (height > 1)
+            fill(0, height - 1, 0, width - 1, height - 1, z1, allowed);
+        if (height > 2) {
+            fill(0, 1, 0, 0, height - 2, z1, allowed);
+            if (width > 1)
+                fill(width - 1, 1, 0, width - 1, height - 2, z1, allowed);
+        }
+        return this;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    int cell(int i) {
+        return cells[i];
+    }
+
+    /**
+     * Copies the allowed realities of restriction {@code i} into {@code out}.
+     */
+    void domain(int i, long[] out) {
+        System.arraycopy(domains, i * words, out, 0, words);
+    }
+}
@@ -0,0 +1,212 @@
+package wfc;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Every decision of a solve as (cell index, reality id) pairs, either collapsing the cell into the reality or, after
+ * backtracking, excluding it. Constraints ban realities as restrictions, which are propagated together with the ones
+ * following them, and a repair that reopened the cells around one is kept as (cell index, radius), propagated together
+ * with the restrictions that follow it. Replaying the decisions in order with propagation rebuilds the exact same grid
+ * without any cell selection or entropy bookkeeping. The propagation mode is kept too, as the modes contain
+ * contradictions differently.
+ * <p>
+ * On disk: magic, version, then varints for width, height, depth (version 4 on, older logs are flat), number of
+ * realities and number of decisions, the seed as a fixed long, the propagation mode as a byte (version 2 on, older logs
+ * used support counters), and the decisions as a zigzag varint cell delta followed by a varint of the reality id or
+ * radius shifted left by two, with the low bits 0 for collapses, 1 for exclusions, 2 for reopened regions and 3 for
+ * restrictions. Before version 3 the id was shifted by one and there were no regions, before version 5 restrictions
+ * were logged as exclusions, which replay with a propagation each.
+ */
+public class DecisionLog {
+    private static final int MAGIC = 0x5746434C, VERSION = 5;
+    private static final int COLLAPSE = 0, EXCLUDE = 1, REOPEN = 2, RESTRICT = 3;
+
+    private final int width, height, depth, realities;
+    private final long seed;
+    private final SolveOptions.Propagation propagation;
+    private int[] cells = new int[16], ids = new int[16];
+    private int size;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: DecisionLog <tileset> <log>");
+            System.exit(1);
+        }
+        TextureMap tm = TextureMap.fromFileConfig(args[0]);
+        DecisionLog log;
+        try (InputStream in = new FileInputStream(args[1])) {
+            log = read(in);
+        }
+        long start = System.nanoTime();
+        int[] ids = log.replay(tm.getRules()).getIds();
+        System.err.format("Replayed %d decisions on %dx%d in %.2fms%n",
+                log.size(), log.width, log.height, (System.nanoTime() - start) / 1e6);
+        System.out.println(new BatchGenerator.Result(0, log.seed, ids, 0, 0, 0));
+    }
+
+    DecisionLog(int width, int height, int depth, int realities, long seed, SolveOptions.Propagation propagation) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.realities = realities;
+        this.seed = seed;
+        this.propagation = propagation;
+    }
+
+    void record(int cell, int id, boolean exclude) {
+        record(cell, id << 2 | (exclude ? EXCLUDE : COLLAPSE));
+    }
+
+    /**
+     * Records a ban that is propagated together with the others up to the next decision.
+     */
+    void restrict(int cell, int id) {
+        record(cell, id << 2 | RESTRICT);
+    }
+
+    void reopen(int cell, int radius) {
+        record(cell, radius << 2 | REOPEN);
+    }
+
+    private void record(int cell, int entry) {
+        if (size == cells.length) {
+            cells = Arrays.copyOf(cells, size * 2);
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        cells[size] = cell;
+        ids[size++] = entry;
+    }
+
+    void truncate(int size) {
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCell(int i) {
+        return cells[i];
+    }
+
+    /**
+     * @return the reality id, or the radius for a reopened region
+     */
+    public int getId(int i) {
+        return ids[i] >>> 2;
+    }
+
+    public boolean isExclusion(int i) {
+        return (ids[i] & 3) == EXCLUDE;
+    }
+
+    public boolean isReopen(int i) {
+        return (ids[i] & 3) == REOPEN;
+    }
+
+    public boolean isRestriction(int i) {
+        return (ids[i] & 3) == RESTRICT;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public Solver replay(RuleSet rules) {
+        if (rules.size() != realities)
+            throw new IllegalArgumentException(String.format("Log was recorded with %d realities, rule set has %d", realities, rules.size()));
+        Solver solver = new Solver(rules, new SolveOptions(width, height, depth, seed).propagation(propagation), false);
+        SolveContext ctx = solver.getContext();
+        long[] allowed = new long[rules.words()];
+        // Reopened regions and restrictions are propagated in one pass once the next decision comes, as in the solve
+        boolean pending = false;
+        for (int i = 0; i < size; i++) {
+            if (isRestriction(i)) {
+                Arrays.fill(allowed, -1L);
+                allowed[getId(i) >>> 6] &= ~(1L << getId(i));
+                ctx.restrict(cells[i], allowed);
+                pending = true;
+                continue;
+            }
+            if (pending)
+                ctx.propagate();
+            pending = isReopen(i);
+            if (isReopen(i)) {
+                ctx.reopen(cells[i], getId(i));
+            } else if (isExclusion(i)) {
+                ctx.exclude(cells[i], getId(i));
+            } else {
+                ctx.collapseInto(cells[i], getId(i));
+            }
+        }
+        if (pending)
+            ctx.propagate();
+        return solver;
+    }
+
+    public void write(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        writeVarint(out, width);
+        writeVarint(out, height);
+        writeVarint(out, depth);
+        writeVarint(out, realities);
+        writeVarint(out, size);
+        out.writeLong(seed);
+        out.writeByte(propagation.ordinal());
+        int last = 0;
+        for (int i = 0; i < size; i++) {
+            int delta = cells[i] - last;
+            writeVarint(out, (delta << 1) ^ (delta >> 31));
+            writeVarint(out, ids[i]);
+            last = cells[i];
+        }
+        out.flush();
+    }
+
+    public static DecisionLog read(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a decision log");
+        int version = in.readByte();
+        if (version < 1 || version > VERSION)
+            throw new IOException("Unsupported decision log version " + version);
+        int width = readVarint(in), height = readVarint(in), depth = version >= 4 ? readVarint(in) : 1;
+        int realities = readVarint(in), size = readVarint(in);
+        long seed = in.readLong();
+        SolveOptions.Propagation propagation = version >= 2
+                ? SolveOptions.Propagation.values()[in.readUnsignedByte()]
+                : SolveOptions.Propagation.SUPPORT;
+        DecisionLog log = new DecisionLog(width, height, depth, realities, seed, propagation);
+        log.cells = new int[Math.max(size, 1)];
+        log.ids = new int[Math.max(size, 1)];
+        int last = 0;
+        for (int i = 0; i < size; i++) {
+            int zigzag = readVarint(in);
+            last += (zigzag >>> 1) ^ -(zigzag & 1);
+            int entry = readVarint(in);
+            log.record(last, version >= 3 ? entry : (entry >>> 1) << 2 | (entry & 1));
+        }
+        return log;
+    }
+
+    static void writeVarint(DataOutput out, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    static int readVarint(DataInput in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,52 @@
+package wfc;
+
+import java.util.Arrays;
+
+/**
+ * The loops bitset propagation spends its time in: the union of what the realities of a domain allow on an edge, and
+ * what of a neighbour falls outside it. This class is the scalar version. When the classes of the {@code vector}
+ * module and {@code jdk.incubator.vector} are both present, {@link #INSTANCE} is {@code VectorDomainKernel} instead,
+ * which handles several words per instruction; that pays off once domains span a few words, as with hundreds of
+ * realities. {@code -Dwfc.vector=false} keeps the scalar kernel regardless. Both give identical results.
+ */
+class DomainKernel {
+    static final DomainKernel INSTANCE = load();
+
+    private static DomainKernel load() {
+        if (!Boolean.parseBoolean(System.getProperty("wfc.vector", "true")))
+            return new DomainKernel();
+        try {
+            // Looked up by name, the main sources still build for Java 11 without the incubator module
+            return (DomainKernel) Class.forName("wfc.VectorDomainKernel").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new DomainKernel();
+        }
+    }
+
+    /**
+     * Writes into {@code out} the union of the rows {@code (id * edges + edge)} of {@code rows}, each
+     * {@code out.length} words long, for every id in {@code domain}.
+     */
+    void union(long[] domain, long[] rows, int edges, int edge, long[] out) {
+        int words = out.length;
+        Arrays.fill(out, 0L);
+        for (int w = 0; w < domain.length; w++)
+            for (long bits = domain[w]; bits != 0; bits &= bits - 1) {
+                int offset = (((w << 6) + Long.numberOfTrailingZeros(bits)) * edges + edge) * words;
+                for (int i = 0; i < words; i++)
+                    out[i] |= rows[offset + i];
+            }
+    }
+
+    /**
+     * Writes {@code a & ~b} into {@code out}.
+     *
+     * @return true if any bit is set in {@code out}
+     */
+    boolean andNot(long[] a, long[] b, long[] out) {
+        long any = 0;
+        for (int i = 0; i < out.length; i++)
+            any |= out[i] = a[i] & ~b[i];
+        return any != 0;
+    }
+}
@@ -0,0 +1,29 @@
+package wfc;
+
+import java.util.Arrays;
+
+/**
+ * A domain as a hash key, for caches of things that only depend on which realities a cell still allows.
+ */
+final class DomainSignature {
+    private final long[] domain;
+    private final int hash;
+
+    /**
+     * @param domain kept as is, not copied
+     */
+    DomainSignature(long[] domain) {
+        this.domain = domain;
+        this.hash = Arrays.hashCode(domain);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof DomainSignature && Arrays.equals(domain, ((DomainSignature) o).domain);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,171 @@
+package wfc;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Indexed binary min-heap of uncollapsed cells keyed by their weighted Shannon entropy. Every cell remembers its own
+ * slot, so a propagation step can re-key or drop a single cell in O(log n) instead of the solver rescanning the grid.
+ * <p>
+ * The entropy terms are kept here in flat arrays indexed by cell, only the solver ever needs them. Together with the
+ * heap they take 32 bytes per cell: the cached entropy is compared on every sift and the noise cannot be derived again
+ * without changing which cells are picked.
+ */
+class EntropyQueue {
+    private final RuleSet rules;
+    private final int[] sumWeights;
+    private final double[] sumWeightLogWeights;
+    private final float[] noise;
+    private final double[] entropy;
+    private final int[] heap, heapIndex;
+    private int size;
+
+    EntropyQueue(RuleSet rules, int cells) {
+        this.rules = rules;
+        this.sumWeights = new int[cells];
+        this.sumWeightLogWeights = new double[cells];
+        this.noise = new float[cells];
+        this.entropy = new double[cells];
+        this.heap = new int[cells];
+        this.heapIndex = new int[cells];
+        Arrays.fill(heapIndex, -1);
+    }
+
+    void init(int cell, long[] domain, int count, double noise) {
+        this.noise[cell] = (float) noise;
+        int sumWeights = 0;
+        double sumWeightLogWeights = 0;
+        for (int i = 0; i < domain.length; i++)
+            for (long bits = domain[i]; bits != 0; bits &= bits - 1) {
+                int id = (i << 6) + Long.numberOfTrailingZeros(bits);
+                sumWeights += rules.weight(id);
+                sumWeightLogWeights += rules.weightLogWeight(id);
+            }
+        this.sumWeights[cell] = sumWeights;
+        this.sumWeightLogWeights[cell] = sumWeightLogWeights;
+        updateEntropy(cell);
+        if (count > 1)
+            add(cell);
+    }
+
+    private void updateEntropy(int cell) {
+        double sum = sumWeights[cell];
+        entropy[cell] = Math.log(sum) - sumWeightLogWeights[cell] / sum + noise[cell];
+    }
+
+    void removed(int cell, int id, int count) {
+        sumWeights[cell] -= rules.weight(id);
+        sumWeightLogWeights[cell] -= rules.weightLogWeight(id);
+        if (count <= 1) {
+            remove(cell);
+        } else {
+            updateEntropy(cell);
+            update(cell);
+        }
+    }
+
+    void restored(int cell, int id, int count) {
+        sumWeights[cell] += rules.weight(id);
+        sumWeightLogWeights[cell] += rules.weightLogWeight(id);
+        if (count >= 2) {
+            updateEntropy(cell);
+            if (contains(cell))
+                update(cell);
+            else
+                add(cell);
+        }
+    }
+
+    double entropy(int cell) {
+        return entropy[cell];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the uncollapsed cell with the lowest entropy, or -1 when every cell is collapsed
+     */
+    int peek() {
+        return size == 0 ? -1 : heap[0];
+    }
+
+    boolean contains(int cell) {
+        return heapIndex[cell] >= 0;
+    }
+
+    /**
+     * Takes every cell {@code keep} rejects out of the queue.
+     *
+     * @return the cells taken out, for {@link #add} to put back
+     */
+    int[] retain(IntPredicate keep) {
+        int[] dropped = new int[16];
+        int n = 0;
+        for (int i = 0; i < size; i++)
+            if (!keep.test(heap[i])) {
+                if (n == dropped.length)
+                    dropped = Arrays.copyOf(dropped, n * 2);
+                dropped[n++] = heap[i];
+            }
+        for (int i = 0; i < n; i++)
+            remove(dropped[i]);
+        return Arrays.copyOf(dropped, n);
+    }
+
+    void add(int cell) {
+        if (contains(cell)) return;
+        heap[size] = cell;
+        heapIndex[cell] = size++;
+        siftUp(heapIndex[cell]);
+    }
+
+    void update(int cell) {
+        if (!contains(cell)) return;
+        siftDown(siftUp(heapIndex[cell]));
+    }
+
+    void remove(int cell) {
+        int i = heapIndex[cell];
+        if (i < 0) return;
+        heapIndex[cell] = -1;
+        int last = heap[--size];
+        if (i == size) return;
+        heap[i] = last;
+        heapIndex[last] = i;
+        siftDown(siftUp(i));
+    }
+
+    private int siftUp(int i) {
+        int cell = heap[i];
+        double key = entropy[cell];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (entropy[heap[parent]] <= key) break;
+            heap[i] = heap[parent];
+            heapIndex[heap[i]] = i;
+            i = parent;
+        }
+        heap[i] = cell;
+        heapIndex[cell] = i;
+        return i;
+    }
+
+    private void siftDown(int i) {
+        int cell = heap[i];
+        double key = entropy[cell];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && entropy[heap[child + 1]] < entropy[heap[child]])
+                child++;
+            if (key <= entropy[heap[child]]) break;
+            heap[i] = heap[child];
+            heapIndex[heap[i]] = i;
+            i = child;
+        }
+        heap[i] = cell;
+        heapIndex[cell] = i;
+    }
+}
@@ -0,0 +1,413 @@
+package wfc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Serves generated maps over HTTP, so a pipeline can ask for maps without starting a JVM and parsing a tileset per map.
+ * <p>
+ * {@code GET /generate?tileset=pipes&width=64&height=64&seed=1} answers with the tile ids, as JSON by default,
+ * {@code format=bin} for big endian ints (width, height, then the ids row-major), {@code format=wfcm} for a
+ * {@link MapFile} or {@code format=png} with {@code tileSize} pixel tiles. {@code trailDepth} enables backtracking.
+ * {@code GET /stats} reports the counters.
+ * <p>
+ * Loaded tilesets stay in memory until their files change. Solved maps are kept in an LRU keyed by (tileset hash,
+ * size, seed, trail depth) and bounded by the cells it holds, and concurrent requests for the same map wait for a
+ * single solve instead of starting their own. Only a fixed number of solves run at once; a request that would start
+ * another is answered with 503. Requests run on virtual threads where the JDK has them.
+ */
+public class GenerationServer {
+    private static final Pattern TILESET_NAME = Pattern.compile("[A-Za-z0-9_-]+");
+    private static final int MAX_SIDE = 4096, MAX_TILE_SIZE = 256;
+    // 256MB of ids, four maps of the largest size
+    private static final long CACHED_CELLS = 1L << 26;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Semaphore solving;
+    private final Map<String, CompletableFuture<Tileset>> tilesets = new ConcurrentHashMap<>();
+    private final Map<Key, CompletableFuture<int[]>> inFlight = new ConcurrentHashMap<>();
+    // Guarded by itself, as is cachedCells
+    private final LinkedHashMap<Key, int[]> results = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedCells;
+    private final LongAdder requests = new LongAdder(), solves = new LongAdder(), cacheHits = new LongAdder(),
+            coalesced = new LongAdder(), rejected = new LongAdder();
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        GenerationServer server = new GenerationServer(new InetSocketAddress(port), threads);
+        server.start();
+        System.err.format("Serving on port %d%n", server.getPort());
+    }
+
+    /**
+     * @param threads solves running at once. On JDKs without virtual threads requests run on a pool four times that
+     *                size, as they mostly wait for a solve or the network
+     */
+    public GenerationServer(InetSocketAddress address, int threads) throws IOException {
+        if (threads < 1)
+            throw new IllegalArgumentException("At least one solve must be allowed to run, not " + threads);
+        this.server = HttpServer.create(address, 0);
+        this.executor = newExecutor(4 * threads);
+        this.solving = new Semaphore(threads);
+        server.setExecutor(executor);
+        server.createContext("/generate", this::generate);
+        server.createContext("/stats", this::stats);
+    }
+
+    /**
+     * Virtual threads are looked up reflectively, so this still builds and runs on JDK 11.
+     */
+    private static ExecutorService newExecutor(int threads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void generate(HttpExchange exchange) throws IOException {
+        requests.increment();
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "Only GET is supported");
+                return;
+            }
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String name = query.getOrDefault("tileset", "");
+            if (!TILESET_NAME.matcher(name).matches()) {
+                send(exchange, 400, "Invalid tileset " + name);
+                return;
+            }
+            int width, height, trailDepth, tileSize;
+            long seed;
+            try {
+                width = intParameter(query, "width", 1, MAX_SIDE, null);
+                height = intParameter(query, "height", 1, MAX_SIDE, width);
+                seed = Long.parseLong(query.getOrDefault("seed", "0"));
+                trailDepth = intParameter(query, "trailDepth", 0, Integer.MAX_VALUE, 0);
+                tileSize = intParameter(query, "tileSize", 1, MAX_TILE_SIZE, 16);
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, e.getMessage());
+                return;
+            }
+            String format = query.getOrDefault("format", "json");
+            if (!format.equals("json") && !format.equals("bin") && !format.equals("wfcm") && !format.equals("png")) {
+                send(exchange, 400, "Unknown format " + format);
+                return;
+            }
+
+            Tileset tileset;
+            try {
+                tileset = tileset(name);
+            } catch (NoSuchFileException e) {
+                send(exchange, 404, "No tileset " + name);
+                return;
+            }
+            int[] ids;
+            try {
+                ids = solve(tileset, width, height, seed, trailDepth);
+            } catch (RejectedExecutionException e) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                send(exchange, 503, e.getMessage());
+                return;
+            }
+            switch (format) {
+                case "bin": {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + 4 * ids.length);
+                    DataOutputStream out = new DataOutputStream(bytes);
+                    out.writeInt(width);
+                    out.writeInt(height);
+                    for (int id : ids)
+                        out.writeInt(id);
+                    send(exchange, 200, "application/octet-stream", bytes.toByteArray());
+                    break;
+                }
+                case "wfcm": {
+                    exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                    exchange.sendResponseHeaders(200, 0);
+                    try (MapFile.Writer out = new MapFile.Writer(new BufferedOutputStream(exchange.getResponseBody()),
+                            tileset.key, width, height, tileset.tm.getRules().size(), MapFile.RUN_LENGTH)) {
+                        out.write(ids, 0, ids.length);
+                    }
+                    break;
+                }
+                case "png": {
+                    exchange.getResponseHeaders().set("Content-Type", "image/png");
+                    exchange.sendResponseHeaders(200, 0);
+                    OutputStream out = new BufferedOutputStream(exchange.getResponseBody());
+                    new PngExporter(tileset.tm, tileSize).write(ids, width, height, out);
+                    out.flush();
+                    break;
+                }
+                default: {
+                    StringBuilder json = new StringBuilder(ids.length * 3 + 96);
+                    json.append("{\"tileset\":\"").append(name).append("\",\"width\":").append(width)
+                            .append(",\"height\":").append(height).append(",\"seed\":").append(seed).append(",\"ids\":[");
+                    for (int i = 0; i < ids.length; i++)
+                        json.append(i > 0 ? "," : "").append(ids[i]);
+                    json.append("]}");
+                    send(exchange, 200, "application/json", json.toString().getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        } catch (Exception e) {
+            System.err.format("%s failed: %s%n", exchange.getRequestURI(), e);
+            if (exchange.getResponseCode() < 0)
+                send(exchange, 500, "Generation failed");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void stats(HttpExchange exchange) throws IOException {
+        try {
+            send(exchange, 200, String.format(
+                    "requests %d%nsolves %d%ncache hits %d%ncoalesced %d%nrejected %d%ntilesets %d%ncached maps %d%n",
+                    requests.sum(), solves.sum(), cacheHits.sum(), coalesced.sum(), rejected.sum(), tilesets.size(),
+                    cachedMaps()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return the loaded tileset, reloaded first if its files changed since. Only the map entry is claimed atomically;
+     * the tileset is read outside of it, and requests for the same tileset meanwhile wait for that read
+     */
+    private Tileset tileset(String name) throws Exception {
+        Path png = Paths.get(String.format("res/tiles/%s.png", name));
+        Path configuration = Paths.get(String.format("res/tiles/%s.configuration", name));
+        long pngModified = Files.getLastModifiedTime(png).toMillis();
+        long configurationModified = Files.getLastModifiedTime(configuration).toMillis();
+        CompletableFuture<Tileset> load = new CompletableFuture<>();
+        CompletableFuture<Tileset> current = tilesets.compute(name, (n, loaded) ->
+                isCurrent(loaded, pngModified, configurationModified) ? loaded : load);
+        if (current != load) {
+            try {
+                return current.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+        try {
+            byte[] key = TilesetCache.key(png, configuration);
+            Tileset tileset = new Tileset(TextureMap.fromFileConfig(name, key), key, pngModified,
+                    configurationModified);
+            load.complete(tileset);
+            return tileset;
+        } catch (Throwable t) {
+            // Dropped so that the next request tries again
+            tilesets.remove(name, load);
+            load.completeExceptionally(t);
+            throw t;
+        }
+    }
+
+    /**
+     * @return whether a tileset loaded, or still loading, can be shared instead of reading the files again
+     */
+    private static boolean isCurrent(CompletableFuture<Tileset> loaded, long pngModified, long configurationModified) {
+        if (loaded == null || loaded.isCompletedExceptionally()) return false;
+        Tileset tileset = loaded.getNow(null);
+        return tileset == null
+                || tileset.pngModified == pngModified && tileset.configurationModified == configurationModified;
+    }
+
+    /**
+     * Answers from the cache, or joins a solve of the same map already running, or solves it.
+     *
+     * @throws RejectedExecutionException if it would have to solve while as many solves as allowed are running
+     */
+    private int[] solve(Tileset tileset, int width, int height, long seed, int trailDepth) throws Exception {
+        Key key = new Key(tileset.hash, width, height, seed, trailDepth);
+        int[] ids = cached(key);
+        if (ids != null) {
+            cacheHits.increment();
+            return ids;
+        }
+        CompletableFuture<int[]> solve = new CompletableFuture<>();
+        CompletableFuture<int[]> running = inFlight.putIfAbsent(key, solve);
+        if (running != null) {
+            coalesced.increment();
+            try {
+                return running.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+        try {
+            // A solve may have finished between the lookup and putIfAbsent
+            ids = cached(key);
+            if (ids != null) {
+                cacheHits.increment();
+            } else {
+                if (!solving.tryAcquire()) {
+                    rejected.increment();
+                    throw new RejectedExecutionException("Too many maps being generated, try again later");
+                }
+                try {
+                    solves.increment();
+                    SolveOptions options = new SolveOptions(width, height, seed).backtracking(trailDepth);
+                    ids = new Solver(tileset.tm.getRules(), options).solve();
+                } finally {
+                    solving.release();
+                }
+                // Cached before leaving the in-flight map, so later requests find it in one of the two
+                cache(key, ids);
+            }
+            solve.complete(ids);
+            return ids;
+        } catch (Throwable t) {
+            solve.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, solve);
+        }
+    }
+
+    private int[] cached(Key key) {
+        synchronized (results) {
+            return results.get(key);
+        }
+    }
+
+    /**
+     * Evicts the least recently used maps until the cache holds at most {@link #CACHED_CELLS} cells.
+     */
+    private void cache(Key key, int[] ids) {
+        if (ids.length > CACHED_CELLS) return;
+        synchronized (results) {
+            int[] replaced = results.put(key, ids);
+            cachedCells += ids.length - (replaced != null ? replaced.length : 0);
+            for (Iterator<int[]> eldest = results.values().iterator(); cachedCells > CACHED_CELLS; ) {
+                cachedCells -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+    }
+
+    private int cachedMaps() {
+        synchronized (results) {
+            return results.size();
+        }
+    }
+
+    private static Map<String, String> parseQuery(String raw) {
+        Map<String, String> query = new HashMap<>();
+        if (raw == null) return query;
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            query.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    /**
+     * @param fallback used when the parameter is missing, null if it is required
+     */
+    private static int intParameter(Map<String, String> query, String name, int min, int max, Integer fallback) {
+        String value = query.get(name);
+        if (value == null) {
+            if (fallback == null)
+                throw new IllegalArgumentException("Missing " + name);
+            return fallback;
+        }
+        int v;
+        try {
+            v = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Invalid %s %s", name, value));
+        }
+        if (v < min || v > max)
+            throw new IllegalArgumentException(String.format("%s must be between %d and %d", name, min, max));
+        return v;
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    private static void send(HttpExchange exchange, int status, String message) throws IOException {
+        send(exchange, status, "text/plain; charset=utf-8", (message + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static final class Tileset {
+        final TextureMap tm;
+        final byte[] key;
+        final String hash;
+        final long pngModified, configurationModified;
+
+        Tileset(TextureMap tm, byte[] key, long pngModified, long configurationModified) {
+            this.tm = tm;
+            this.key = key;
+            this.hash = hex(key);
+            this.pngModified = pngModified;
+            this.configurationModified = configurationModified;
+        }
+    }
+
+    private static final class Key {
+        final String tileset;
+        final int width, height, trailDepth;
+        final long seed;
+
+        Key(String tileset, int width, int height, long seed, int trailDepth) {
+            this.tileset = tileset;
+            this.width = width;
+            this.height = height;
+            this.seed = seed;
+            this.trailDepth = trailDepth;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return tileset.equals(k.tileset) && width == k.width && height == k.height && seed == k.seed
+                    && trailDepth == k.trailDepth;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tileset, width, height, seed, trailDepth);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package wfc;
+
+import jdk.jfr.*;
+
+/**
+ * Emits solver activity as Flight Recorder events under "Wave Function Collapse". Events that are not enabled in the
+ * recording are dropped before any of their fields are set.
+ */
+public class JfrSolverListener implements SolverListener {
+    @Override
+    public void initialized(int cells, long nanos) {
+        GridEvent event = new GridEvent();
+        if (!event.isEnabled()) return;
+        event.cells = cells;
+        event.time = nanos;
+        event.commit();
+    }
+
+    @Override
+    public void propagated(int visited, int removed, int queueHighWater, long nanos) {
+        PropagationEvent event = new PropagationEvent();
+        if (!event.isEnabled()) return;
+        event.visited = visited;
+        event.removed = removed;
+        event.queueHighWater = queueHighWater;
+        event.time = nanos;
+        event.commit();
+    }
+
+    @Override
+    public void contradiction(int cell) {
+        ContradictionEvent event = new ContradictionEvent();
+        if (!event.isEnabled()) return;
+        event.cell = cell;
+        event.commit();
+    }
+
+    @Override
+    public void restarted(int restart, long seed) {
+        RestartEvent event = new RestartEvent();
+        if (!event.isEnabled()) return;
+        event.restart = restart;
+        event.seed = seed;
+        event.commit();
+    }
+
+    @Name("wfc.Grid")
+    @Label("Grid Initialized")
+    @Category("Wave Function Collapse")
+    static class GridEvent extends Event {
+        @Label("Cells")
+        int cells;
+        @Label("Time")
+        @Timespan
+        long time;
+    }
+
+    @Name("wfc.Propagation")
+    @Label("Propagation")
+    @Category("Wave Function Collapse")
+    static class PropagationEvent extends Event {
+        @Label("Visited")
+        int visited;
+        @Label("Removed")
+        int removed;
+        @Label("Queue High Water")
+        int queueHighWater;
+        @Label("Time")
+        @Timespan
+        long time;
+    }
+
+    @Name("wfc.Contradiction")
+    @Label("Contradiction")
+    @Category("Wave Function Collapse")
+    static class ContradictionEvent extends Event {
+        @Label("Cell")
+        int cell;
+    }
+
+    @Name("wfc.Restart")
+    @Label("Restart")
+    @Category("Wave Function Collapse")
+    static class RestartEvent extends Event {
+        @Label("Restart")
+        int restart;
+        @Label("Seed")
+        long seed;
+    }
+}
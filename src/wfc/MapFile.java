@@ -0,0 +1,360 @@
+package wfc;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A solved map on disk ({@code .wfcm}), packed to the fewest bits a cell needs and read back through a memory mapping,
+ * so any cell or rectangle of a map far larger than the heap is found without reading what lies before it.
+ * <p>
+ * On disk: magic, version byte, the 32 byte {@link TilesetCache#key} of the tileset, width, height and number of
+ * realities as big endian ints, and a flags byte. Then the cells row by row, each as {@code id + 1} (0 for a
+ * contradiction) in {@code bits} bits, most significant bit first, followed by 8 zero bytes. With
+ * {@link #RUN_LENGTH} a row may instead be stored as runs of (value, x of the last cell of the run), whichever is
+ * shorter, and the file ends with the bit offset of every row and of the end of the data as longs. A row of exactly
+ * {@code width * bits} bits is packed, runs always take fewer.
+ * <p>
+ * Packed rows are read in constant time, rows of runs with a binary search over their runs.
+ */
+public class MapFile {
+    private static final int MAGIC = 0x5746434D, VERSION = 1;
+    public static final int RUN_LENGTH = 1;
+    private static final int KEY_BYTES = 32, HEADER = 4 + 1 + KEY_BYTES + 4 + 4 + 4 + 1;
+    // Mapped segments overlap by a long, so any long starting in a segment can be read from it
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private final byte[] key;
+    private final int width, height, realities, flags, bits, xBits;
+    private final ByteBuffer[] segments;
+    private final long index;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 5 && args[0].equals("write")) {
+            write(args);
+        } else if (args.length >= 6 && args[0].equals("read")) {
+            MapFile map = open(Paths.get(args[1]));
+            int x = Integer.parseInt(args[2]), y = Integer.parseInt(args[3]);
+            int width = Integer.parseInt(args[4]), height = Integer.parseInt(args[5]);
+            System.out.println(new BatchGenerator.Result(0, 0, map.read(x, y, width, height), 0, 0, 0));
+        } else {
+            System.err.println("Usage: MapFile write <tileset> <width>[x<height>] <seed> <out.wfcm> [chunkSize]");
+            System.err.println("       MapFile read <map.wfcm> <x> <y> <width> <height>");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Solves a map, or streams one out of a {@link ChunkWorld} one band of chunks at a time when given a chunk size,
+     * and writes it with runs.
+     */
+    private static void write(String[] args) throws IOException {
+        byte[] key = TilesetCache.key(Paths.get(String.format("res/tiles/%s.png", args[1])),
+                Paths.get(String.format("res/tiles/%s.configuration", args[1])));
+        TextureMap tm = TextureMap.fromFileConfig(args[1], key);
+        String[] size = args[2].split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = size.length > 1 ? Integer.parseInt(size[1]) : width;
+        long seed = Long.parseLong(args[3]);
+        Path out = Paths.get(args[4]);
+
+        long start = System.nanoTime();
+        try (Writer writer = new Writer(new BufferedOutputStream(Files.newOutputStream(out), 1 << 16), key, width,
+                height, tm.getRules().size(), RUN_LENGTH)) {
+            if (args.length > 5) {
+                int chunkSize = Integer.parseInt(args[5]);
+                int[][] band = new int[(width - 1) / chunkSize + 1][];
+                // Chunks are fitted to those above and left of them, so the band being generated and the one above
+                // it have to stay cached
+                ChunkWorld world = new ChunkWorld(tm.getRules(), chunkSize, seed, Math.max(5, 2 * band.length + 1),
+                        null, 10_000);
+                for (int cy = 0; cy * chunkSize < height; cy++) {
+                    for (int cx = 0; cx < band.length; cx++)
+                        band[cx] = world.getChunk(cx, cy);
+                    for (int y = 0; y < chunkSize && cy * chunkSize + y < height; y++)
+                        for (int x = 0; x < width; x++)
+                            writer.write(band[x / chunkSize][y * chunkSize + x % chunkSize]);
+                }
+            } else {
+                writer.write(new Solver(tm.getRules(), new SolveOptions(width, height, seed)).solve(), 0, width * height);
+            }
+        }
+        System.err.format("Wrote %dx%d to %s in %.2fs, %d bytes%n", width, height, out,
+                (System.nanoTime() - start) / 1e9, Files.size(out));
+    }
+
+    private MapFile(byte[] key, int width, int height, int realities, int flags, ByteBuffer[] segments, long index) {
+        this.key = key;
+        this.width = width;
+        this.height = height;
+        this.realities = realities;
+        this.flags = flags;
+        this.bits = bitsFor(realities);
+        this.xBits = bitsFor(width - 1);
+        this.segments = segments;
+        this.index = index;
+    }
+
+    /**
+     * @return bits needed for the values 0 to {@code max}, at least one
+     */
+    private static int bitsFor(int max) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(max));
+    }
+
+    /**
+     * Maps the file. Nothing but the header is read until cells are asked for.
+     */
+    public static MapFile open(Path path) throws IOException {
+        ByteBuffer[] segments;
+        long size;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            size = channel.size();
+            if (size < HEADER)
+                throw new IOException("Not a map file");
+            segments = new ByteBuffer[(int) ((size - 1) >>> SEGMENT_SHIFT) + 1];
+            for (int i = 0; i < segments.length; i++) {
+                long from = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(size - from, SEGMENT_MASK + 1 + Long.BYTES));
+            }
+        }
+        ByteBuffer in = segments[0].duplicate();
+        if (in.getInt() != MAGIC)
+            throw new IOException("Not a map file");
+        int version = in.get();
+        if (version != VERSION)
+            throw new IOException("Unsupported map file version " + version);
+        byte[] key = new byte[KEY_BYTES];
+        in.get(key);
+        int width = in.getInt(), height = in.getInt(), realities = in.getInt(), flags = in.get();
+        if (width <= 0 || height <= 0 || realities <= 0)
+            throw new IOException(String.format("Invalid %dx%d map of %d realities", width, height, realities));
+        long data = HEADER + ((long) width * height * bitsFor(realities) + 7) / 8 + Long.BYTES;
+        long index = (flags & RUN_LENGTH) != 0 ? size - (long) Long.BYTES * (height + 1) : -1;
+        if ((flags & RUN_LENGTH) == 0 ? size < data : index < HEADER)
+            throw new IOException("Truncated map file");
+        return new MapFile(key, width, height, realities, flags, segments, index);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getRealities() {
+        return realities;
+    }
+
+    /**
+     * @return the {@link TilesetCache#key} of the tileset the ids belong to
+     */
+    public byte[] getTilesetKey() {
+        return key.clone();
+    }
+
+    public boolean isRunLength() {
+        return (flags & RUN_LENGTH) != 0;
+    }
+
+    /**
+     * @return the reality id at (x, y), -1 for a contradiction
+     */
+    public int get(int x, int y) {
+        checkBounds(x, y, 1, 1);
+        long start = rowStart(y);
+        if (isPackedRow(start, y))
+            return value(start + (long) x * bits, bits) - 1;
+        return value(start + (long) findRun(start, y, x) * (bits + xBits), bits) - 1;
+    }
+
+    public int[] read(int x, int y, int width, int height) {
+        int[] ids = new int[width * height];
+        read(x, y, width, height, ids);
+        return ids;
+    }
+
+    /**
+     * Copies the ids of the rectangle at (x, y) into {@code out} in row-major order.
+     */
+    public void read(int x, int y, int width, int height, int[] out) {
+        checkBounds(x, y, width, height);
+        if (out.length < width * height)
+            throw new IllegalArgumentException(String.format("%d ids do not fit %dx%d", out.length, width, height));
+        int runBits = bits + xBits;
+        for (int row = 0, i = 0; row < height; row++) {
+            long start = rowStart(y + row);
+            if (isPackedRow(start, y + row)) {
+                for (long bit = start + (long) x * bits; i < (row + 1) * width; i++, bit += bits)
+                    out[i] = value(bit, bits) - 1;
+                continue;
+            }
+            long run = start + (long) findRun(start, y + row, x) * runBits;
+            for (int cx = x; cx < x + width; run += runBits) {
+                int id = value(run, bits) - 1, last = Math.min(value(run + bits, xBits), x + width - 1);
+                for (; cx <= last; cx++)
+                    out[i++] = id;
+            }
+        }
+    }
+
+    private void checkBounds(int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || width < 0 || height < 0 || x + width > this.width || y + height > this.height)
+            throw new IllegalArgumentException(String.format("%dx%d at (%d,%d) is outside the %dx%d map",
+                    width, height, x, y, this.width, this.height));
+    }
+
+    /**
+     * @return bit offset of the row from the start of the cells
+     */
+    private long rowStart(int y) {
+        return index < 0 ? (long) y * width * bits : getLong(index + (long) Long.BYTES * y);
+    }
+
+    private boolean isPackedRow(long start, int y) {
+        return index < 0 || getLong(index + (long) Long.BYTES * (y + 1)) - start == (long) width * bits;
+    }
+
+    /**
+     * @return the number of the run of the row that covers {@code x}
+     */
+    private int findRun(long start, int y, int x) {
+        int runBits = bits + xBits;
+        int lo = 0, hi = (int) ((getLong(index + (long) Long.BYTES * (y + 1)) - start) / runBits) - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (value(start + (long) mid * runBits + bits, xBits) < x)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return the {@code n} bit value at {@code bit} bits into the cells, n is at most 32
+     */
+    private int value(long bit, int n) {
+        long word = getLong(HEADER + (bit >>> 3));
+        return (int) ((word >>> (64 - (bit & 7) - n)) & ((1L << n) - 1));
+    }
+
+    private long getLong(long offset) {
+        return segments[(int) (offset >>> SEGMENT_SHIFT)].getLong((int) (offset & SEGMENT_MASK));
+    }
+
+    /**
+     * Writes a map cell by cell in row-major order, holding a single row at a time. The map is complete once the
+     * writer is closed.
+     */
+    public static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final int width, height, bits, xBits;
+        private final boolean runLength;
+        private final int[] row;
+        private final long[] rowStarts;
+        private int x, y;
+        private long acc, position;
+        private int accBits;
+
+        /**
+         * @param key   {@link TilesetCache#key} of the tileset, 32 bytes
+         * @param flags {@link #RUN_LENGTH} or 0
+         */
+        public Writer(OutputStream os, byte[] key, int width, int height, int realities, int flags) throws IOException {
+            if (key.length != KEY_BYTES)
+                throw new IllegalArgumentException(String.format("Tileset key of %d bytes, expected %d", key.length, KEY_BYTES));
+            if (width <= 0 || height <= 0 || realities <= 0)
+                throw new IllegalArgumentException(String.format("Invalid %dx%d map of %d realities", width, height, realities));
+            this.out = new DataOutputStream(os);
+            this.width = width;
+            this.height = height;
+            this.bits = bitsFor(realities);
+            this.xBits = bitsFor(width - 1);
+            this.runLength = (flags & RUN_LENGTH) != 0;
+            this.row = new int[width];
+            this.rowStarts = runLength ? new long[height + 1] : null;
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.write(key);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(realities);
+            out.writeByte(flags & RUN_LENGTH);
+        }
+
+        /**
+         * @param id reality id of the next cell, -1 for a contradiction
+         */
+        public void write(int id) throws IOException {
+            if (y == height)
+                throw new IllegalStateException(String.format("The %dx%d map is complete", width, height));
+            row[x++] = id + 1;
+            if (x == width) {
+                writeRow();
+                x = 0;
+                y++;
+            }
+        }
+
+        public void write(int[] ids, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++)
+                write(ids[i]);
+        }
+
+        private void writeRow() throws IOException {
+            int runs = 1;
+            for (int i = 1; i < width; i++)
+                if (row[i] != row[i - 1]) runs++;
+            if (runLength && (long) runs * (bits + xBits) < (long) width * bits) {
+                for (int i = 0; i < width; i++)
+                    if (i == width - 1 || row[i + 1] != row[i]) {
+                        put(row[i], bits);
+                        put(i, xBits);
+                    }
+            } else {
+                for (int v : row)
+                    put(v, bits);
+            }
+            if (runLength)
+                rowStarts[y + 1] = position;
+        }
+
+        private void put(int value, int n) throws IOException {
+            acc = acc << n | value;
+            accBits += n;
+            position += n;
+            for (; accBits >= 8; accBits -= 8)
+                out.writeByte((int) (acc >>> (accBits - 8)));
+        }
+
+        /**
+         * Pads the cells and writes the row offsets, then closes the stream.
+         *
+         * @throws IllegalStateException if fewer than width * height cells were written
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (y < height)
+                    throw new IllegalStateException(String.format("%d of %d cells written", y * width + x, width * height));
+                if (accBits > 0)
+                    put(0, 8 - accBits);
+                out.write(new byte[Long.BYTES]);
+                if (runLength)
+                    for (long start : rowStarts)
+                        out.writeLong(start);
+                out.flush();
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
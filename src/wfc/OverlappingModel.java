@@ -0,0 +1,319 @@
+package wfc;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The overlapping model: instead of hand-made tiles with sockets, every {@code n * n} window of a sample image is a
+ * reality, weighted by how often it occurs. Two patterns may be neighbours when they agree on the pixels they would
+ * share if shifted by one cell. The result is an ordinary {@link RuleSet}, solved like any tileset, and every solved
+ * cell stands for the top left pixel of its pattern.
+ * <p>
+ * Windows are deduplicated by a two dimensional rolling hash, so extraction is linear in the sample size. Overlap
+ * compatibility is found by hashing the shared strip of every pattern, which only compares patterns that match.
+ */
+public class OverlappingModel {
+    private static final long ROW_BASE = 0x9E3779B97F4A7C15L, COLUMN_BASE = 0xC2B2AE3D27D4EB4FL;
+
+    private final int n;
+    // n * n pixels per pattern
+    private final int[] patterns;
+    private final RuleSet rules;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 5) {
+            System.err.println("Usage: OverlappingModel <sample.png> <n> <width>[x<height>] <seed> <out.png> [symmetry] [periodic] [trailDepth]");
+            System.exit(1);
+        }
+        BufferedImage sample = ImageIO.read(new File(args[0]));
+        int n = Integer.parseInt(args[1]);
+        String[] size = args[2].split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = size.length > 1 ? Integer.parseInt(size[1]) : width;
+        long seed = Long.parseLong(args[3]);
+        int symmetry = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+        boolean periodic = args.length > 6 && Boolean.parseBoolean(args[6]);
+        int trailDepth = args.length > 7 ? Integer.parseInt(args[7]) : 1000;
+
+        long start = System.nanoTime();
+        OverlappingModel model = extract(sample, n, symmetry, periodic);
+        long extracted = System.nanoTime();
+        System.err.format("Extracted %d patterns from %dx%d in %.2fs%n", model.getRules().size(), sample.getWidth(),
+                sample.getHeight(), (extracted - start) / 1e9);
+        int[] ids = new Solver(model.getRules(), new SolveOptions(width, height, seed).backtracking(trailDepth)).solve();
+        System.err.format("Solved %dx%d in %.2fs%n", width, height, (System.nanoTime() - extracted) / 1e9);
+        ImageIO.write(model.render(ids, width, height), "png", new File(args[4]));
+    }
+
+    private OverlappingModel(int n, int[] patterns, RuleSet rules) {
+        this.n = n;
+        this.patterns = patterns;
+        this.rules = rules;
+    }
+
+    /**
+     * @param symmetry how many of the 8 rotations and reflections of the sample to learn from: 1 is the sample as is,
+     *                 2 adds its mirror image, 8 every orientation
+     * @param periodic whether windows wrap around the edges of the sample
+     */
+    public static OverlappingModel extract(BufferedImage sample, int n, int symmetry, boolean periodic) {
+        int w = sample.getWidth(), h = sample.getHeight();
+        if (n < 2 || n > Math.min(w, h))
+            throw new IllegalArgumentException(String.format("Pattern size %d does not fit a %dx%d sample", n, w, h));
+        if (symmetry < 1 || symmetry > 8)
+            throw new IllegalArgumentException("Invalid symmetry " + symmetry);
+
+        Patterns found = new Patterns(n);
+        int[] pixels = sample.getRGB(0, 0, w, h, null, 0, w);
+        for (int k = 0; k < symmetry; k++) {
+            int[] variant = pixels;
+            int vw = w, vh = h;
+            for (int r = 0; r < k / 2; r++) {
+                variant = rotate(variant, vw, vh);
+                int t = vw;
+                vw = vh;
+                vh = t;
+            }
+            if ((k & 1) == 1)
+                variant = reflect(variant, vw, vh);
+            found.scan(variant, vw, vh, periodic);
+        }
+        // The compatibility table alone needs count^2 bits per edge
+        if ((long) found.count * found.count / 2 > Runtime.getRuntime().maxMemory() / 2)
+            throw new IllegalArgumentException(String.format("The sample has %d distinct %dx%d patterns, too many to relate",
+                    found.count, n, n));
+        int[] patterns = Arrays.copyOf(found.pixels, found.count * n * n);
+        int[] weights = Arrays.copyOf(found.weights, found.count);
+        String[] names = new String[found.count];
+        for (int i = 0; i < names.length; i++)
+            names[i] = "p" + i;
+        return new OverlappingModel(n, patterns, RuleSet.of(overlaps(patterns, found.count, n), weights, names));
+    }
+
+    /**
+     * @return the sample turned a quarter clockwise, {@code h} pixels wide
+     */
+    private static int[] rotate(int[] pixels, int w, int h) {
+        int[] rotated = new int[pixels.length];
+        for (int y = 0, i = 0; y < w; y++)
+            for (int x = 0; x < h; x++)
+                rotated[i++] = pixels[(h - 1 - x) * w + y];
+        return rotated;
+    }
+
+    private static int[] reflect(int[] pixels, int w, int h) {
+        int[] reflected = new int[pixels.length];
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++)
+                reflected[y * w + x] = pixels[y * w + w - 1 - x];
+        return reflected;
+    }
+
+    /**
+     * Pattern {@code b} may lie on {@code edge} of pattern {@code a} when the part of {@code a} away from that edge
+     * equals the part of {@code b} towards it. Patterns are grouped by the hash of that part first.
+     */
+    private static long[] overlaps(int[] patterns, int count, int n) {
+        int words = RuleSet.wordsFor(count);
+        int edges = Stencil.SQUARE.directions();
+        long[] compatible = new long[count * edges * words];
+        for (int edge = 0; edge < edges; edge++) {
+            int dx = Stencil.SQUARE.dx(edge), dy = Stencil.SQUARE.dy(edge);
+            // Patterns with the same hash are chained through next, -1 ending a chain
+            Map<Long, Integer> heads = new HashMap<>();
+            int[] next = new int[count];
+            for (int b = 0; b < count; b++) {
+                Integer head = heads.put(hashOverlap(patterns, n, b, -dx, -dy), b);
+                next[b] = head == null ? -1 : head;
+            }
+            for (int a = 0; a < count; a++) {
+                Integer head = heads.get(hashOverlap(patterns, n, a, dx, dy));
+                if (head == null) continue;
+                int offset = (a * edges + edge) * words;
+                for (int b = head; b >= 0; b = next[b])
+                    if (agrees(patterns, n, a, b, dx, dy))
+                        compatible[offset + (b >>> 6)] |= 1L << b;
+            }
+        }
+        return compatible;
+    }
+
+    /**
+     * Hashes the pixels of a pattern that remain inside the window when it is shifted by {@code (-dx, -dy)}.
+     */
+    private static long hashOverlap(int[] patterns, int n, int pattern, int dx, int dy) {
+        long hash = 1;
+        int base = pattern * n * n;
+        for (int y = Math.max(0, dy); y < n + Math.min(0, dy); y++)
+            for (int x = Math.max(0, dx); x < n + Math.min(0, dx); x++)
+                hash = hash * ROW_BASE + patterns[base + y * n + x];
+        return hash;
+    }
+
+    private static boolean agrees(int[] patterns, int n, int a, int b, int dx, int dy) {
+        int baseA = a * n * n, baseB = b * n * n;
+        for (int y = Math.max(0, dy); y < n + Math.min(0, dy); y++)
+            for (int x = Math.max(0, dx); x < n + Math.min(0, dx); x++)
+                if (patterns[baseA + y * n + x] != patterns[baseB + (y - dy) * n + x - dx])
+                    return false;
+        return true;
+    }
+
+    public RuleSet getRules() {
+        return rules;
+    }
+
+    public int getPatternSize() {
+        return n;
+    }
+
+    /**
+     * @return the colour a solved cell stands for, the top left pixel of its pattern
+     */
+    public int getColor(int id) {
+        return patterns[id * n * n];
+    }
+
+    /**
+     * Draws one pixel per cell, cells that ended in a contradiction (id -1) stay transparent.
+     */
+    public BufferedImage render(int[] ids, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] out = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < ids.length; i++)
+            out[i] = ids[i] >= 0 ? getColor(ids[i]) : 0;
+        return image;
+    }
+
+    /**
+     * The distinct windows found so far with their occurrence counts. Candidates are found through the rolling hash
+     * and confirmed pixel by pixel, so hash collisions cannot merge different patterns.
+     */
+    private static final class Patterns {
+        final int n;
+        // Open addressing from window hash to the first pattern with that hash, next chains the others
+        long[] keys = new long[1024];
+        int[] heads = new int[1024];
+        int[] pixels = new int[0], weights = new int[16], next = new int[16];
+        int count, distinctHashes;
+
+        Patterns(int n) {
+            this.n = n;
+            Arrays.fill(heads, -1);
+        }
+
+        void scan(int[] sample, int w, int h, boolean periodic) {
+            // Periodic samples are padded with their own first columns and rows, so no window needs to wrap
+            if (periodic) {
+                int pw = w + n - 1, ph = h + n - 1;
+                int[] padded = new int[pw * ph];
+                for (int y = 0; y < ph; y++)
+                    for (int x = 0; x < pw; x++)
+                        padded[y * pw + x] = sample[y % h * w + x % w];
+                sample = padded;
+                w = pw;
+                h = ph;
+            }
+            int columns = w - n + 1, rows = h - n + 1;
+            long rowPower = power(ROW_BASE, n), columnPower = power(COLUMN_BASE, n);
+            // rowHashes[y * columns + x] hashes the n pixels of row y starting at column x
+            long[] rowHashes = new long[h * columns];
+            for (int y = 0; y < h; y++) {
+                long hash = 0;
+                for (int x = 0, i = y * w; x < w; x++, i++) {
+                    hash = hash * ROW_BASE + pixel(sample[i]);
+                    if (x >= n)
+                        hash -= rowPower * pixel(sample[i - n]);
+                    if (x >= n - 1)
+                        rowHashes[y * columns + x - n + 1] = hash;
+                }
+            }
+            for (int x = 0; x < columns; x++) {
+                long hash = 0;
+                for (int y = 0; y < h; y++) {
+                    hash = hash * COLUMN_BASE + rowHashes[y * columns + x];
+                    if (y >= n)
+                        hash -= columnPower * rowHashes[(y - n) * columns + x];
+                    if (y >= n - 1)
+                        add(hash, sample, w, (y - n + 1) * w + x);
+                }
+            }
+        }
+
+        private static long pixel(int argb) {
+            return (argb & 0xFFFFFFFFL) + 1;
+        }
+
+        private static long power(long base, int exponent) {
+            long power = 1;
+            for (int i = 0; i < exponent; i++)
+                power *= base;
+            return power;
+        }
+
+        private int slot(long hash) {
+            int mask = keys.length - 1;
+            int slot = (int) ((hash * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+            while (heads[slot] >= 0 && keys[slot] != hash)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        /**
+         * @param origin index of the top left pixel of the window in {@code sample}
+         */
+        private void add(long hash, int[] sample, int w, int origin) {
+            int slot = slot(hash);
+            for (int p = heads[slot]; p >= 0; p = next[p])
+                if (matches(p, sample, w, origin)) {
+                    weights[p]++;
+                    return;
+                }
+            if (count == weights.length) {
+                weights = Arrays.copyOf(weights, count * 2);
+                next = Arrays.copyOf(next, count * 2);
+            }
+            if ((count + 1) * n * n > pixels.length)
+                pixels = Arrays.copyOf(pixels, Math.max(16 * n * n, pixels.length * 2));
+            for (int y = 0, i = count * n * n; y < n; y++, i += n)
+                System.arraycopy(sample, origin + y * w, pixels, i, n);
+            weights[count] = 1;
+            if (heads[slot] < 0) {
+                keys[slot] = hash;
+                distinctHashes++;
+            }
+            next[count] = heads[slot];
+            heads[slot] = count++;
+            if (distinctHashes * 2 > keys.length)
+                grow();
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldHeads = heads;
+            keys = new long[oldKeys.length * 2];
+            heads = new int[oldHeads.length * 2];
+            Arrays.fill(heads, -1);
+            for (int i = 0; i < oldKeys.length; i++)
+                if (oldHeads[i] >= 0) {
+                    int slot = slot(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    heads[slot] = oldHeads[i];
+                }
+        }
+
+        private boolean matches(int p, int[] sample, int w, int origin) {
+            for (int y = 0, i = p * n * n; y < n; y++)
+                for (int x = 0, j = origin + y * w; x < n; x++)
+                    if (pixels[i++] != sample[j++])
+                        return false;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package wfc;
+
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link BitsetPropagator} that splits large propagations over bands of rows. Every band is owned by one thread, which
+ * alone touches the domains of its cells. A restriction crossing into another band is posted to that band's lock-free
+ * inbox as a copy of the allowed realities, since the owner is the only one that may read the neighbour. The owner hands
+ * the copy back to the sender once applied, so bands reuse their message buffers. A band without work parks until a
+ * message arrives or the propagation ends.
+ * <p>
+ * Domains only ever shrink, so the bands can intersect in any order and still reach the same fixpoint. The bans are
+ * collected per band and the entropy bookkeeping and trail are caught up on the calling thread afterwards.
+ * <p>
+ * The calling thread runs the first band, the others run on workers started with the first parallel drain and kept for
+ * the ones after it. Idle workers exit after a second, so a propagator that is never {@linkplain #close closed} keeps
+ * no threads alive for long either.
+ */
+class ParallelPropagator extends BitsetPropagator {
+    // Fewer queued cells than this are propagated on the calling thread, threads would cost more than they save
+    private static final int PARALLEL_THRESHOLD = 4096;
+
+    private final Band[] bands;
+    private final int rowsPerBand;
+    // Posted messages plus bands with local work, zero once the whole grid is at its fixpoint
+    private final AtomicInteger work = new AtomicInteger();
+    private volatile boolean stop;
+    private boolean stopOnContradiction;
+    private ThreadPoolExecutor workers;
+
+    ParallelPropagator(SolveContext ctx, boolean keepTrail, int parallelism) {
+        super(ctx, keepTrail);
+        // Rows of all layers, one after another
+        int width = ctx.getWidth(), height = ctx.cells() / width;
+        int count = Math.min(parallelism, height);
+        this.rowsPerBand = (height + count - 1) / count;
+        count = (height + rowsPerBand - 1) / rowsPerBand;
+        this.bands = new Band[count];
+        for (int i = 0; i < count; i++)
+            bands[i] = new Band(i, i * rowsPerBand * width, Math.min((i + 1) * rowsPerBand, height) * width);
+    }
+
+    private Band owner(int cell) {
+        return bands[cell / ctx.getWidth() / rowsPerBand];
+    }
+
+    @Override
+    void drain(boolean stopOnContradiction) {
+        if (bands.length == 1 || tail - head < PARALLEL_THRESHOLD) {
+            super.drain(stopOnContradiction);
+            return;
+        }
+        this.stopOnContradiction = stopOnContradiction;
+        stop = false;
+        while (head != tail) {
+            int cell = queue[head++ & (queue.length - 1)];
+            queued[cell >>> 6] &= ~(1L << cell);
+            owner(cell).enqueue(cell);
+        }
+        head = tail = 0;
+        for (Band band : bands)
+            if (band.size > 0) {
+                band.active = true;
+                work.incrementAndGet();
+            }
+
+        if (workers == null) {
+            workers = new ThreadPoolExecutor(bands.length - 1, bands.length - 1, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), task -> {
+                Thread thread = new Thread(task, "wfc-propagation");
+                thread.setDaemon(true);
+                return thread;
+            });
+            workers.allowCoreThreadTimeOut(true);
+        }
+        Future<?>[] running = new Future<?>[bands.length - 1];
+        for (int i = 0; i < running.length; i++)
+            running[i] = workers.submit(bands[i + 1]);
+        bands[0].run();
+        boolean interrupted = false;
+        for (Future<?> band : running)
+            while (true) {
+                try {
+                    band.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // Bands catch everything themselves and report it below
+                    throw new IllegalStateException("Propagation failed", e.getCause());
+                }
+            }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        for (Band band : bands) {
+            if (band.failure != null)
+                throw new IllegalStateException("Propagation failed", band.failure);
+            for (int i = 0, emptied = 0; i < band.bans; i++) {
+                // Counts are already final here, only the ban that emptied a cell reports it
+                boolean emptying = emptied < band.contradictions && band.emptiedBy[emptied] == i;
+                if (emptying)
+                    emptied++;
+                ctx.removed(band.banCells[i], band.banIds[i], emptying);
+                if (keepTrail)
+                    append(band.banCells[i], band.banIds[i]);
+            }
+            visited += band.visited;
+            queueHighWater = Math.max(queueHighWater, band.queueHighWater);
+            if (band.contradictions > 0) {
+                contradiction = true;
+                contradictions += band.contradictions;
+            }
+            band.reset();
+        }
+        work.set(0);
+    }
+
+    /**
+     * Counts one piece of work as done, waking every band once none is left so that they return.
+     */
+    private void finished() {
+        if (work.decrementAndGet() == 0)
+            wakeAll();
+    }
+
+    private void wakeAll() {
+        for (Band band : bands)
+            LockSupport.unpark(band.thread);
+    }
+
+    @Override
+    void close() {
+        if (workers != null) {
+            workers.shutdownNow();
+            workers = null;
+        }
+    }
+
+    @Override
+    void clearPending() {
+        super.clearPending();
+        for (Band band : bands)
+            band.reset();
+    }
+
+    private final class Band implements Runnable {
+        final int index, first, end;
+        // Messages from other bands, the target cell in the low and the sending band in the high half of the first word
+        final ConcurrentLinkedQueue<long[]> inbox = new ConcurrentLinkedQueue<>();
+        // Buffers of messages this band sent, handed back by their receivers
+        final ConcurrentLinkedQueue<long[]> spare = new ConcurrentLinkedQueue<>();
+        // Set while the band runs, to be unparked
+        volatile Thread thread;
+        final long[] queued;
+        final long[] domain = new long[rules.words()], allowed = new long[rules.words()];
+        private final long[] neighbour = new long[rules.words()], outside = new long[rules.words()];
+        int[] queue = new int[64];
+        int head, size;
+        int[] banCells = new int[64], banIds = new int[64];
+        // Index of the ban that emptied a cell, for each contradiction
+        int[] emptiedBy = new int[16];
+        int bans, contradictions, visited, queueHighWater;
+        boolean active;
+        Throwable failure;
+
+        Band(int index, int first, int end) {
+            this.index = index;
+            this.first = first;
+            this.end = end;
+            this.queued = new long[(end - first + 63) >>> 6];
+        }
+
+        void enqueue(int cell) {
+            int local = cell - first;
+            if ((queued[local >>> 6] & (1L << local)) != 0) return;
+            queued[local >>> 6] |= 1L << local;
+            if (size == queue.length) {
+                int[] grown = new int[queue.length * 2];
+                for (int i = 0; i < size; i++)
+                    grown[i] = queue[(head + i) & (queue.length - 1)];
+                queue = grown;
+                head = 0;
+            }
+            queue[(head + size++) & (queue.length - 1)] = cell;
+            if (size > queueHighWater)
+                queueHighWater = size;
+        }
+
+        private int dequeue() {
+            int cell = queue[head];
+            head = (head + 1) & (queue.length - 1);
+            size--;
+            int local = cell - first;
+            queued[local >>> 6] &= ~(1L << local);
+            return cell;
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            try {
+                loop();
+            } catch (Throwable t) {
+                failure = t;
+                stop = true;
+                wakeAll();
+            } finally {
+                thread = null;
+            }
+        }
+
+        private void loop() {
+            while (!stop) {
+                long[] message = inbox.poll();
+                if (message != null) {
+                    int cell = (int) message[0];
+                    System.arraycopy(message, 1, allowed, 0, allowed.length);
+                    bands[(int) (message[0] >>> 32)].spare.offer(message);
+                    restrict(cell);
+                    finished();
+                } else if (size > 0) {
+                    process(dequeue());
+                } else {
+                    if (active) {
+                        active = false;
+                        finished();
+                    }
+                    if (work.get() == 0) return;
+                    // A message posted since the poll above has already unparked this thread, so it returns at once
+                    LockSupport.park(this);
+                }
+            }
+        }
+
+        private void process(int cell) {
+            if (ctx.count(cell) == 0) return;
+            visited++;
+            ctx.touched(cell);
+            ctx.readDomain(cell, domain);
+            for (int edge = 0; edge < rules.edges(); edge++) {
+                int neighbour = ctx.neighbour(cell, edge);
+                if (neighbour < 0) continue;
+                rules.allowedNeighbours(domain, edge, allowed);
+                if (neighbour >= first && neighbour < end) {
+                    restrict(neighbour);
+                } else {
+                    long[] message = spare.poll();
+                    if (message == null)
+                        message = new long[allowed.length + 1];
+                    message[0] = (long) index << 32 | neighbour;
+                    System.arraycopy(allowed, 0, message, 1, allowed.length);
+                    work.incrementAndGet();
+                    Band owner = owner(neighbour);
+                    owner.inbox.offer(message);
+                    LockSupport.unpark(owner.thread);
+                }
+            }
+        }
+
+        /**
+         * Bans every reality of an owned cell outside {@link #allowed}.
+         */
+        private void restrict(int cell) {
+            ctx.readDomain(cell, neighbour);
+            if (!DomainKernel.INSTANCE.andNot(neighbour, allowed, outside)) return;
+            for (int w = 0; w < outside.length; w++)
+                for (long bits = outside[w]; bits != 0; bits &= bits - 1) {
+                    int id = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    ctx.clear(cell, id);
+                    if (bans == banCells.length) {
+                        banCells = Arrays.copyOf(banCells, bans * 2);
+                        banIds = Arrays.copyOf(banIds, bans * 2);
+                    }
+                    banCells[bans] = cell;
+                    banIds[bans++] = id;
+                }
+            if (ctx.count(cell) == 0) {
+                if (contradictions == emptiedBy.length)
+                    emptiedBy = Arrays.copyOf(emptiedBy, contradictions * 2);
+                emptiedBy[contradictions++] = bans - 1;
+                if (stopOnContradiction) {
+                    stop = true;
+                    wakeAll();
+                }
+                return;
+            }
+            if (!active) {
+                active = true;
+                work.incrementAndGet();
+            }
+            enqueue(cell);
+        }
+
+        void reset() {
+            inbox.clear();
+            Arrays.fill(queued, 0L);
+            head = size = bans = contradictions = visited = queueHighWater = 0;
+            active = false;
+            failure = null;
+        }
+    }
+}
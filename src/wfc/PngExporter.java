@@ -0,0 +1,184 @@
+package wfc;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes solved maps as PNG one row of tiles at a time. Only a single band of {@code width * tileSize} by
+ * {@code tileSize} pixels is ever drawn, and its scanlines are deflated straight into IDAT chunks, so the heap needed
+ * does not grow with the height of the map.
+ */
+public class PngExporter {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    // Compressed bytes collected into one IDAT chunk
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private final TextureMap tm;
+    private final int tileSize;
+    private final BufferedImage[] tiles;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 5) {
+            System.err.println("Usage: PngExporter <tileset> <width>[x<height>] <seed> <tileSize> <out.png> [trailDepth]");
+            System.exit(1);
+        }
+        TextureMap tm = TextureMap.fromFileConfig(args[0]);
+        String[] size = args[1].split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = size.length > 1 ? Integer.parseInt(size[1]) : width;
+        long seed = Long.parseLong(args[2]);
+        int tileSize = Integer.parseInt(args[3]);
+        int trailDepth = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+
+        long start = System.nanoTime();
+        int[] ids = new Solver(tm.getRules(), new SolveOptions(width, height, seed).backtracking(trailDepth)).solve();
+        long solved = System.nanoTime();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(args[4]))) {
+            new PngExporter(tm, tileSize).write(ids, width, height, out);
+        }
+        System.err.format("Solved %dx%d in %.2fs, wrote %s in %.2fs%n", width, height, (solved - start) / 1e9,
+                args[4], (System.nanoTime() - solved) / 1e9);
+    }
+
+    /**
+     * @param tileSize side of a tile in the output in pixels, textures are scaled to it once
+     */
+    public PngExporter(TextureMap tm, int tileSize) {
+        if (tileSize <= 0)
+            throw new IllegalArgumentException("Invalid tile size " + tileSize);
+        this.tm = tm;
+        this.tileSize = tileSize;
+        this.tiles = new BufferedImage[tm.realities.size()];
+    }
+
+    private BufferedImage getTile(int id) {
+        if (tiles[id] == null) {
+            BufferedImage tile = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = tile.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(tm.realities.get(id).getImage(), 0, 0, tileSize, tileSize, null);
+            g.dispose();
+            tiles[id] = tile;
+        }
+        return tiles[id];
+    }
+
+    /**
+     * Writes the map as an 8 bit RGBA PNG. Cells that ended in a contradiction (id -1) stay transparent.
+     *
+     * @param ids reality ids in row-major order, as returned by {@link Solver#solve()}
+     */
+    public void write(int[] ids, int width, int height, OutputStream os) throws IOException {
+        if (ids.length != width * height)
+            throw new IllegalArgumentException(String.format("%d ids for a %dx%d map", ids.length, width, height));
+        long pixelWidth = (long) width * tileSize, pixelHeight = (long) height * tileSize;
+        if (pixelWidth > Integer.MAX_VALUE / 4 || pixelHeight > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(String.format("%dx%d pixels do not fit a PNG", pixelWidth, pixelHeight));
+
+        DataOutputStream out = new DataOutputStream(os);
+        out.write(SIGNATURE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream h = new DataOutputStream(header);
+        h.writeInt((int) pixelWidth);
+        h.writeInt((int) pixelHeight);
+        h.writeByte(8); // bit depth
+        h.writeByte(6); // RGBA
+        h.writeByte(0); // deflate
+        h.writeByte(0); // adaptive filtering
+        h.writeByte(0); // no interlace
+        writeChunk(out, "IHDR", header.toByteArray(), header.size());
+
+        BufferedImage band = new BufferedImage((int) pixelWidth, tileSize, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) band.getRaster().getDataBuffer()).getData();
+        byte[] scanline = new byte[1 + 4 * (int) pixelWidth];
+        Deflater deflater = new Deflater();
+        try (DeflaterOutputStream idat = new DeflaterOutputStream(new ChunkStream(out), deflater, CHUNK_SIZE)) {
+            for (int y = 0; y < height; y++) {
+                Graphics2D g = band.createGraphics();
+                g.setComposite(AlphaComposite.Src);
+                g.setColor(new Color(0, 0, 0, 0));
+                g.fillRect(0, 0, band.getWidth(), tileSize);
+                for (int x = 0; x < width; x++) {
+                    int id = ids[y * width + x];
+                    if (id >= 0)
+                        g.drawImage(getTile(id), x * tileSize, 0, null);
+                }
+                g.dispose();
+                for (int row = 0, offset = 0; row < tileSize; row++, offset += band.getWidth()) {
+                    scanline[0] = 0; // no filter
+                    for (int i = offset, j = 1, end = offset + band.getWidth(); i < end; i++) {
+                        int argb = pixels[i];
+                        scanline[j++] = (byte) (argb >>> 16);
+                        scanline[j++] = (byte) (argb >>> 8);
+                        scanline[j++] = (byte) argb;
+                        scanline[j++] = (byte) (argb >>> 24);
+                    }
+                    idat.write(scanline);
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        writeChunk(out, "IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Cuts the compressed stream into IDAT chunks. Closing it writes the last chunk but leaves the file open.
+     */
+    private static final class ChunkStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int size;
+
+        ChunkStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == buffer.length) flushChunk();
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (size == buffer.length) flushChunk();
+                int n = Math.min(len, buffer.length - size);
+                System.arraycopy(b, off, buffer, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void flushChunk() throws IOException {
+            if (size == 0) return;
+            writeChunk(out, "IDAT", buffer, size);
+            size = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushChunk();
+        }
+    }
+}
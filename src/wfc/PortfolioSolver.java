@@ -0,0 +1,155 @@
+package wfc;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Races several independently seeded attempts at the same grid and keeps the first one that collapses every cell.
+ * The remaining attempts are cancelled cooperatively, they stop after their current step.
+ */
+public class PortfolioSolver {
+    private final RuleSet rules;
+    private final int width, height, trailDepth;
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        if (args.length < 4) {
+            System.err.println("Usage: PortfolioSolver <tileset> <width>[x<height>] <seed> <attempts> [trailDepth]");
+            System.exit(1);
+        }
+        TextureMap tm = TextureMap.fromFileConfig(args[0]);
+        String[] size = args[1].split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = size.length > 1 ? Integer.parseInt(size[1]) : width;
+        long seed = Long.parseLong(args[2]);
+        int attempts = Integer.parseInt(args[3]);
+        int trailDepth = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+        Result r = new PortfolioSolver(tm.getRules(), width, height, trailDepth).solve(seed, attempts);
+        System.err.format("%s attempt %d (seed %d) in %.2fms, %d of %d steps wasted%n",
+                r.isSuccess() ? "Won by" : "No attempt succeeded, best was", r.getAttempt(), r.getSeed(),
+                r.getNanos() / 1e6, r.getWastedSteps(), r.getTotalSteps());
+        System.out.println(new BatchGenerator.Result(r.getAttempt(), r.getSeed(), r.getIds(), r.getNanos(), 0, 0));
+    }
+
+    public PortfolioSolver(RuleSet rules, int width, int height, int trailDepth) {
+        this.rules = rules;
+        this.width = width;
+        this.height = height;
+        this.trailDepth = trailDepth;
+    }
+
+    /**
+     * Returns as soon as one attempt collapses every cell, or once all of them ended with contradictions. Attempts build
+     * their solvers, including the initial propagation, on their own threads, so that is part of the race too. The
+     * steps of the attempts cancelled are counted once they have stopped, after the time is taken.
+     */
+    public Result solve(long baseSeed, int attempts) throws InterruptedException, ExecutionException {
+        long start = System.nanoTime();
+        long[] seeds = new long[attempts];
+        AtomicReferenceArray<Solver> solvers = new AtomicReferenceArray<>(attempts);
+        AtomicBoolean won = new AtomicBoolean();
+        ExecutorService pool = Executors.newFixedThreadPool(attempts);
+        try {
+            CompletionService<Integer> done = new ExecutorCompletionService<>(pool);
+            int[][] ids = new int[attempts][];
+            for (int i = 0; i < attempts; i++) {
+                int attempt = i;
+                seeds[attempt] = SolveOptions.derivedSeed(baseSeed, attempt);
+                done.submit(() -> {
+                    Solver solver = new Solver(rules, new SolveOptions(width, height, seeds[attempt]).backtracking(trailDepth));
+                    // Either this sees the win or the winner sees this solver and cancels it
+                    solvers.set(attempt, solver);
+                    if (won.get()) solver.cancel();
+                    ids[attempt] = solver.solve();
+                    return attempt;
+                });
+            }
+
+            int winner = -1, best = -1, bestContradictions = Integer.MAX_VALUE;
+            for (int i = 0; i < attempts && winner < 0; i++) {
+                int attempt = done.take().get();
+                int contradictions = contradictions(ids[attempt]);
+                if (contradictions == 0) {
+                    winner = attempt;
+                    won.set(true);
+                    for (int other = 0; other < attempts; other++) {
+                        Solver solver = solvers.get(other);
+                        if (other != attempt && solver != null) solver.cancel();
+                    }
+                }
+                if (contradictions < bestContradictions) {
+                    best = attempt;
+                    bestContradictions = contradictions;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            int chosen = winner >= 0 ? winner : best;
+            long total = 0;
+            for (int i = 0; i < attempts; i++) {
+                Solver solver = solvers.get(i);
+                if (solver != null) total += solver.getSteps();
+            }
+            return new Result(winner >= 0, chosen, seeds[chosen], ids[chosen], elapsed,
+                    total - solvers.get(chosen).getSteps(), total);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static int contradictions(int[] ids) {
+        int n = 0;
+        for (int id : ids)
+            if (id < 0) n++;
+        return n;
+    }
+
+    public static class Result {
+        private final boolean success;
+        private final int attempt;
+        private final long seed, nanos, wastedSteps, totalSteps;
+        private final int[] ids;
+
+        Result(boolean success, int attempt, long seed, int[] ids, long nanos, long wastedSteps, long totalSteps) {
+            this.success = success;
+            this.attempt = attempt;
+            this.seed = seed;
+            this.ids = ids;
+            this.nanos = nanos;
+            this.wastedSteps = wastedSteps;
+            this.totalSteps = totalSteps;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        public int getAttempt() {
+            return attempt;
+        }
+
+        public long getSeed() {
+            return seed;
+        }
+
+        public int[] getIds() {
+            return ids;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public long getWastedSteps() {
+            return wastedSteps;
+        }
+
+        public long getTotalSteps() {
+            return totalSteps;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package wfc;
+
+import java.util.Arrays;
+
+/**
+ * Spreads reality removals through a {@link SolveContext} until every remaining reality fits some reality of each
+ * neighbour. Subclasses decide how a removal reaches the neighbours.
+ * <p>
+ * When the trail is kept, every ban is appended to it and {@link #undo} walks it backwards, restoring domains and
+ * letting the subclass revert whatever bookkeeping the already propagated bans did.
+ */
+abstract class Propagator {
+    final SolveContext ctx;
+    final RuleSet rules;
+    final boolean keepTrail;
+    int[] trailCells = new int[64], trailIds = new int[64];
+    int trailSize;
+    boolean contradiction;
+    int contradictions;
+    // Since the last reset, for SolverListener
+    int visited, queueHighWater;
+
+    Propagator(SolveContext ctx, boolean keepTrail) {
+        this.ctx = ctx;
+        this.rules = ctx.rules;
+        this.keepTrail = keepTrail;
+    }
+
+    /**
+     * Bans, everywhere but on the border, the realities that nothing can sit next to, and propagates.
+     */
+    void init() {
+        long[] full = rules.fullDomain();
+        long[][] fits = new long[rules.edges()][rules.words()];
+        for (int edge = 0; edge < rules.edges(); edge++)
+            rules.allowedNeighbours(full, rules.opposite(edge), fits[edge]);
+        for (int cell = 0; cell < ctx.cells(); cell++)
+            for (int edge = 0; edge < rules.edges(); edge++)
+                if (ctx.neighbour(cell, edge) >= 0)
+                    for (int w = 0; w < fits[edge].length; w++)
+                        for (long bits = ctx.domainWord(cell, w) & ~fits[edge][w]; bits != 0; bits &= bits - 1)
+                            ban(cell, (w << 6) + Long.numberOfTrailingZeros(bits));
+        drain(false);
+        trailSize = 0;
+    }
+
+    /**
+     * Removes {@code id} from the cell and schedules the removal for propagation.
+     */
+    abstract void ban(int cell, int id);
+
+    void propagate() {
+        drain(keepTrail);
+    }
+
+    abstract void drain(boolean stopOnContradiction);
+
+    /**
+     * Reverts the effect a propagated ban had on the bookkeeping of the neighbouring cells.
+     */
+    abstract void unpropagate(int entry);
+
+    abstract void clearPending();
+
+    /**
+     * Releases threads the propagator started. It still works afterwards, and starts them again when needed.
+     */
+    void close() {
+    }
+
+    /**
+     * Recomputes the bookkeeping of {@code cells} and their neighbours after their domains were changed other than by
+     * bans, as when a region is reopened. Nothing may be pending and the trail is dropped by the caller.
+     */
+    void rebuild(int[] cells) {
+    }
+
+    /**
+     * Appends a ban to the trail and checks whether it emptied its cell. Such a ban is not propagated any further, so
+     * a contradiction stays local instead of emptying every cell around it.
+     *
+     * @return true if the cell still has realities left
+     */
+    boolean trail(int cell, int id) {
+        if (keepTrail)
+            append(cell, id);
+        if (ctx.count(cell) == 0) {
+            contradiction = true;
+            contradictions++;
+            return false;
+        }
+        return true;
+    }
+
+    void append(int cell, int id) {
+        if (trailSize == trailCells.length) {
+            trailCells = Arrays.copyOf(trailCells, trailSize * 2);
+            trailIds = Arrays.copyOf(trailIds, trailSize * 2);
+            grownTrail(trailSize * 2);
+        }
+        trailCells[trailSize] = cell;
+        trailIds[trailSize++] = id;
+    }
+
+    void grownTrail(int capacity) {
+    }
+
+    /**
+     * Finishes propagation leaving contradicted cells empty, as without backtracking, and makes the whole trail
+     * permanent. For contradictions that no undo could fix.
+     */
+    void settle() {
+        drain(false);
+        forget(trailSize);
+        contradiction = false;
+    }
+
+    boolean isContradicted() {
+        return contradiction;
+    }
+
+    int trailSize() {
+        return trailSize;
+    }
+
+    /**
+     * Reverts every ban after the first {@code size} trail entries.
+     */
+    void undo(int size) {
+        clearPending();
+        for (int entry = trailSize - 1; entry >= size; entry--) {
+            unpropagate(entry);
+            ctx.restore(trailCells[entry], trailIds[entry]);
+        }
+        trailSize = size;
+        contradiction = false;
+    }
+
+    /**
+     * Makes the first {@code size} trail entries permanent and shifts the rest down, so the trail only grows with
+     * the decisions that can still be undone.
+     */
+    void forget(int size) {
+        System.arraycopy(trailCells, size, trailCells, 0, trailSize - size);
+        System.arraycopy(trailIds, size, trailIds, 0, trailSize - size);
+        trailSize -= size;
+    }
+}
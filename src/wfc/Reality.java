@@ -5,15 +5,29 @@ import java.awt.image.BufferedImage;
 public class Reality {
 
     String name;
+    int id;
     TextureMap.Texture texture;
     int[] sockets;
     int weight;
+    private final TextureMap.SocketProvider socketProvider;
 
-    public Reality(String name, int weight, TextureMap.Texture t) {
+    public Reality(String name, int weight, TextureMap.Texture t, TextureMap.SocketProvider socketProvider) {
         this.name = name;
         this.texture = t;
         this.weight = weight;
-        sockets = TextureMap.getSocketProvider().getSockets(t);
+        this.socketProvider = socketProvider;
+        sockets = socketProvider.getSockets(t);
+    }
+
+    /**
+     * For realities whose sockets are already known, as when loaded from a {@link TilesetCache}.
+     */
+    Reality(String name, int weight, TextureMap.Texture t, TextureMap.SocketProvider socketProvider, int[] sockets) {
+        this.name = name;
+        this.texture = t;
+        this.weight = weight;
+        this.socketProvider = socketProvider;
+        this.sockets = sockets;
     }
 
     public BufferedImage getImage() {
@@ -29,13 +43,13 @@ public class Reality {
             if (r == '3') sb.deleteCharAt(1);
             else sb.setCharAt(1, (char) (r + 1));
         }
-        return new Reality(sb.toString(), this.weight, texture.rotate90());
+        return new Reality(sb.toString(), this.weight, texture.rotate90(), socketProvider);
     }
 
 
     @Override
     public String toString() {
-        return "Reality{" +this.name + ", "+ TextureMap.getSocketProvider().format(sockets) + '}';
+        return "Reality{" +this.name + ", "+ socketProvider.format(sockets) + '}';
     }
 
     public TextureMap.Texture getTexture() {
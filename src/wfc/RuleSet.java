@@ -0,0 +1,188 @@
+package wfc;
+
+import java.util.List;
+
+/**
+ * Adjacency rules compiled from a {@link TextureMap}. Every {@link Reality} is addressed by its dense id and
+ * compatibility is kept as one bitset per (id, edge): bit {@code o} of {@code compatible(id, edge)} is set
+ * when reality {@code o} may lie on the {@code edge} side of reality {@code id}. Edges are the directions of the
+ * {@link Stencil} the rules were compiled for, four for flat tilesets and six for voxels.
+ */
+public final class RuleSet {
+    private final Stencil stencil;
+    private final int size, words, edges;
+    private final long[] compatible;
+    private final int[][] compatibleIds;
+    private final int[] weights;
+    private final double[] weightLogWeights;
+    private final String[] names;
+
+    private RuleSet(Stencil stencil, int size, long[] compatible, int[] weights, String[] names) {
+        this.stencil = stencil;
+        this.size = size;
+        this.words = wordsFor(size);
+        this.edges = stencil.directions();
+        this.compatible = compatible;
+        this.compatibleIds = new int[size * edges][];
+        for (int i = 0; i < compatibleIds.length; i++) {
+            int c = 0;
+            for (int w = 0; w < words; w++)
+                c += Long.bitCount(compatible[i * words + w]);
+            int[] ids = new int[c];
+            c = 0;
+            for (int w = 0; w < words; w++)
+                for (long bits = compatible[i * words + w]; bits != 0; bits &= bits - 1)
+                    ids[c++] = (w << 6) + Long.numberOfTrailingZeros(bits);
+            compatibleIds[i] = ids;
+        }
+        this.weights = weights;
+        this.weightLogWeights = new double[size];
+        for (int i = 0; i < size; i++)
+            weightLogWeights[i] = weights[i] * Math.log(weights[i]);
+        this.names = names;
+    }
+
+    public static RuleSet compile(List<Reality> realities) {
+        int n = realities.size();
+        int[][] sockets = new int[n][];
+        int[] weights = new int[n];
+        String[] names = new String[n];
+        for (Reality r : realities) {
+            assert realities.get(r.id) == r;
+            sockets[r.id] = r.sockets;
+            weights[r.id] = r.weight;
+            names[r.id] = r.name;
+        }
+        return compile(Stencil.SQUARE, sockets, weights, names);
+    }
+
+    /**
+     * Two realities may be neighbours when the sockets they turn towards each other are equal.
+     *
+     * @param sockets per reality, one socket for every direction of the stencil
+     */
+    static RuleSet compile(Stencil stencil, int[][] sockets, int[] weights, String[] names) {
+        int n = sockets.length, edges = stencil.directions();
+        int words = wordsFor(n);
+        long[] compatible = new long[n * edges * words];
+        for (int id = 0; id < n; id++) {
+            if (sockets[id].length != edges)
+                throw new IllegalArgumentException(String.format("%s has %d sockets, expected %d", names[id], sockets[id].length, edges));
+            for (int edge = 0; edge < edges; edge++) {
+                int otherEdge = stencil.opposite(edge);
+                int offset = (id * edges + edge) * words;
+                for (int other = 0; other < n; other++)
+                    if (sockets[id][edge] == sockets[other][otherEdge])
+                        compatible[offset + (other >>> 6)] |= 1L << other;
+            }
+        }
+        return new RuleSet(stencil, n, compatible, weights, names);
+    }
+
+    /**
+     * For flat models without sockets, such as {@link OverlappingModel}.
+     *
+     * @param compatible one bitset of {@link #wordsFor(int) wordsFor(size)} words per (id, edge), in that order
+     */
+    static RuleSet of(long[] compatible, int[] weights, String[] names) {
+        int n = weights.length;
+        if (compatible.length != n * Stencil.SQUARE.directions() * wordsFor(n) || names.length != n)
+            throw new IllegalArgumentException("Rules do not match " + n + " realities");
+        return new RuleSet(Stencil.SQUARE, n, compatible, weights, names);
+    }
+
+    static int wordsFor(int size) {
+        return (size + 63) >>> 6;
+    }
+
+    int opposite(int edge) {
+        return stencil.opposite(edge);
+    }
+
+    static boolean contains(long[] domain, int id) {
+        return (domain[id >>> 6] & (1L << id)) != 0;
+    }
+
+    /**
+     * @return a hash of the compatibilities, weights and names, to tell files written for other rules apart
+     */
+    long fingerprint() {
+        long hash = 0xCBF29CE484222325L ^ edges;
+        for (long word : compatible)
+            hash = (hash ^ word) * 0x100000001B3L;
+        for (int weight : weights)
+            hash = (hash ^ weight) * 0x100000001B3L;
+        for (String name : names)
+            hash = (hash ^ name.hashCode()) * 0x100000001B3L;
+        return hash;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int words() {
+        return words;
+    }
+
+    public Stencil stencil() {
+        return stencil;
+    }
+
+    /**
+     * @return the number of directions of the stencil
+     */
+    public int edges() {
+        return edges;
+    }
+
+    public int weight(int id) {
+        return weights[id];
+    }
+
+    double weightLogWeight(int id) {
+        return weightLogWeights[id];
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+
+    public boolean isCompatible(int id, int edge, int other) {
+        return (compatible[(id * edges + edge) * words + (other >>> 6)] & (1L << other)) != 0;
+    }
+
+    /**
+     * @return how many realities of {@code domain} may lie on the {@code edge} side of {@code id}
+     */
+    int countCompatible(int id, int edge, long[] domain) {
+        int offset = (id * edges + edge) * words, count = 0;
+        for (int i = 0; i < words; i++)
+            count += Long.bitCount(compatible[offset + i] & domain[i]);
+        return count;
+    }
+
+    int[] compatibleIds(int id, int edge) {
+        return compatibleIds[id * edges + edge];
+    }
+
+    public long[] fullDomain() {
+        long[] domain = new long[words];
+        for (int i = 0; i < size; i++)
+            domain[i >>> 6] |= 1L << i;
+        return domain;
+    }
+
+    public long[] singleton(int id) {
+        long[] domain = new long[words];
+        domain[id >>> 6] = 1L << id;
+        return domain;
+    }
+
+    /**
+     * Writes into {@code out} every id that may lie on the {@code edge} side of at least one id in {@code domain}.
+     */
+    public void allowedNeighbours(long[] domain, int edge, long[] out) {
+        DomainKernel.INSTANCE.union(domain, compatible, edges, edge, out);
+    }
+}
@@ -0,0 +1,475 @@
+package wfc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntConsumer;
+
+/**
+ * Everything a single solve owns: the domains of its width x height (x depth) cells, the shared rule set, the random
+ * source and the propagation state. Nothing here touches AWT, so any number of contexts can run side by side on
+ * headless machines.
+ * <p>
+ * Cells are addressed by their row-major index, layer after layer. Neighbours are found through the
+ * {@link Stencil} of the rules: a fixed index offset per direction and a mask per cell of the directions that stay
+ * inside the grid, so no lookup branches on where the cell is. Domains are stored flat, {@link RuleSet#words()} longs
+ * per cell, either on the heap or in a direct buffer, next to an array holding the reality id of every collapsed cell.
+ * {@link Wave}s are only views created on demand.
+ * <p>
+ * Besides its domain a cell costs 5 bytes here, 32 in the {@link EntropyQueue} when cells are selected, and whatever
+ * its {@link Propagator} keeps. A grid whose domains or counters do not fit in one array is refused.
+ */
+public class SolveContext {
+    private static final int CACHED_ALIAS_TABLES = 1024;
+    // Longest array most VMs allocate
+    private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    final RuleSet rules;
+    final SolveOptions options;
+    final Random rnd;
+    final Propagator propagator;
+    final EntropyQueue entropyQueue;
+    final DecisionLog decisions;
+    final SolverListener listener;
+    private final int width, height, depth, words;
+    private final int[] offsets;
+    // Bit d is set when the cell has a neighbour in direction d
+    private final byte[] inside;
+    private final LongBuffer domains;
+    final int[] collapsed;
+    final int[] lastPropagation;
+    private final long[] dirty;
+    private int propagations;
+    // Alias tables of the domains collapsed recently, most cells are picked from one of a few domains
+    private final Map<DomainSignature, AliasTable> aliasTables = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<DomainSignature, AliasTable> eldest) {
+            return size() > CACHED_ALIAS_TABLES;
+        }
+    };
+    private final long[] pickDomain;
+    // Removals so far and at the end of the last reported propagation
+    private int removals, reportedRemovals;
+
+    SolveContext(RuleSet rules, SolveOptions options, long seed, boolean selecting) {
+        long start = System.nanoTime();
+        this.rules = rules;
+        this.options = options;
+        this.listener = options.listener;
+        this.rnd = new Random(seed);
+        this.width = options.width;
+        this.height = options.height;
+        this.depth = options.depth;
+        this.words = rules.words();
+        this.pickDomain = new long[words];
+        int cells = width * height * depth;
+        // Checked before anything is allocated
+        int domainWords = arrayLength((long) cells * words, "domain words");
+        if (options.offHeap)
+            arrayLength((long) domainWords * Long.BYTES, "domain bytes off heap");
+        Stencil stencil = rules.stencil();
+        if (depth > 1 && stencil.isFlat())
+            throw new IllegalArgumentException(String.format("%d layers for flat rules", depth));
+        this.offsets = stencil.offsets(width, height);
+        this.inside = new byte[cells];
+        for (int z = 0, cell = 0; z < depth; z++)
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    inside[cell++] = (byte) stencil.inside(x, y, z, width, height, depth);
+
+        long[] full = rules.fullDomain();
+        this.domains = options.offHeap
+                ? ByteBuffer.allocateDirect(domainWords * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer()
+                : LongBuffer.allocate(domainWords);
+        for (int cell = 0; cell < cells; cell++)
+            for (int i = 0; i < words; i++)
+                domains.put(cell * words + i, full[i]);
+        this.collapsed = new int[cells];
+        int only = rules.size() == 1 ? 0 : -1;
+        Arrays.fill(collapsed, only);
+        this.lastPropagation = options.trackPropagations ? new int[cells] : null;
+        this.dirty = options.trackPropagations ? new long[(cells + 63) >>> 6] : null;
+
+        SolveOptions.Propagation propagation = options.propagationFor(rules);
+        this.decisions = options.recordDecisions ? new DecisionLog(width, height, depth, rules.size(), options.seed, propagation) : null;
+        // Replays only apply known decisions, so they skip the entropy bookkeeping altogether
+        this.entropyQueue = selecting ? new EntropyQueue(rules, cells) : null;
+        if (selecting)
+            for (int cell = 0; cell < cells; cell++)
+                entropyQueue.init(cell, full, rules.size(), rnd.nextDouble() * 1e-6);
+
+        boolean keepTrail = options.trailDepth > 0;
+        switch (propagation) {
+            case SUPPORT:
+                this.propagator = new SupportPropagator(this, keepTrail);
+                break;
+            case PARALLEL:
+                this.propagator = new ParallelPropagator(this, keepTrail, options.parallelism);
+                break;
+            default:
+                this.propagator = new BitsetPropagator(this, keepTrail);
+        }
+        propagator.init();
+        reportedRemovals = removals;
+        if (listener != SolverListener.NONE)
+            listener.initialized(cells, System.nanoTime() - start);
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code length} elements do not fit in one array or buffer
+     */
+    static int arrayLength(long length, String what) {
+        if (length > MAX_ARRAY_LENGTH)
+            throw new IllegalArgumentException(String.format("Grid too large: %d %s do not fit in one array", length, what));
+        return (int) length;
+    }
+
+    int cells() {
+        return inside.length;
+    }
+
+    int index(int x, int y) {
+        return y * width + x;
+    }
+
+    int index(int x, int y, int z) {
+        return (z * height + y) * width + x;
+    }
+
+    int x(int cell) {
+        return cell % width;
+    }
+
+    int y(int cell) {
+        return cell / width % height;
+    }
+
+    int z(int cell) {
+        return cell / width / height;
+    }
+
+    /**
+     * @return the index of the cell on the given edge, or -1 past the border
+     */
+    int neighbour(int cell, int edge) {
+        // All ones past the border, all zeros inside
+        int outside = (inside[cell] >>> edge & 1) - 1;
+        return (cell + offsets[edge]) | outside;
+    }
+
+    boolean has(int cell, int id) {
+        return (domains.get(cell * words + (id >>> 6)) & (1L << id)) != 0;
+    }
+
+    int count(int cell) {
+        if (words == 1) return Long.bitCount(domains.get(cell));
+        int count = 0;
+        for (int i = cell * words, end = i + words; i < end; i++)
+            count += Long.bitCount(domains.get(i));
+        return count;
+    }
+
+    void readDomain(int cell, long[] out) {
+        for (int i = 0; i < words; i++)
+            out[i] = domains.get(cell * words + i);
+    }
+
+    long domainWord(int cell, int word) {
+        return domains.get(cell * words + word);
+    }
+
+    int nthId(int cell, int n) {
+        for (int i = 0; i < words; i++) {
+            long bits = domains.get(cell * words + i);
+            int c = Long.bitCount(bits);
+            if (n >= c) {
+                n -= c;
+                continue;
+            }
+            for (; n > 0; n--)
+                bits &= bits - 1;
+            return (i << 6) + Long.numberOfTrailingZeros(bits);
+        }
+        return -1;
+    }
+
+    int[] ids(int cell) {
+        int[] ids = new int[count(cell)];
+        int n = 0;
+        for (int i = 0; i < words; i++)
+            for (long bits = domains.get(cell * words + i); bits != 0; bits &= bits - 1)
+                ids[n++] = (i << 6) + Long.numberOfTrailingZeros(bits);
+        return ids;
+    }
+
+    boolean remove(int cell, int id) {
+        if (!clear(cell, id)) return false;
+        removed(cell, id);
+        return true;
+    }
+
+    /**
+     * Removes {@code id} from the domain only. Cells owned by different threads can be cleared concurrently, the
+     * bookkeeping is caught up later with {@link #removed}.
+     */
+    boolean clear(int cell, int id) {
+        int index = cell * words + (id >>> 6);
+        long word = domains.get(index);
+        if ((word & (1L << id)) == 0) return false;
+        domains.put(index, word & ~(1L << id));
+        return true;
+    }
+
+    void removed(int cell, int id) {
+        removed(cell, id, true);
+    }
+
+    /**
+     * @param emptying false if the ban did not empty the cell itself, for bans caught up after later ones of the same
+     *                 cell were cleared already, so an emptied cell is reported as a contradiction once
+     */
+    void removed(int cell, int id, boolean emptying) {
+        int count = count(cell);
+        removals++;
+        markDirty(cell);
+        collapsed[cell] = count == 1 ? nthId(cell, 0) : -1;
+        if (entropyQueue != null)
+            entropyQueue.removed(cell, id, count);
+        if (count == 0 && emptying)
+            listener.contradiction(cell);
+    }
+
+    void restore(int cell, int id) {
+        int index = cell * words + (id >>> 6);
+        domains.put(index, domains.get(index) | (1L << id));
+        int count = count(cell);
+        markDirty(cell);
+        collapsed[cell] = count == 1 ? id : -1;
+        if (entropyQueue != null)
+            entropyQueue.restored(cell, id, count);
+    }
+
+    void touched(int cell) {
+        if (lastPropagation == null || lastPropagation[cell] == propagations) return;
+        lastPropagation[cell] = propagations;
+        // The debug colour is that of the last propagation, so the cell is redrawn even if its domain stayed the same.
+        // Parallel bands touch cells concurrently, hence the lock, which only runs that track propagations take
+        synchronized (dirty) {
+            markDirty(cell);
+        }
+    }
+
+    private void markDirty(int cell) {
+        if (dirty != null)
+            dirty[cell >>> 6] |= 1L << cell;
+    }
+
+    /**
+     * Hands every cell whose domain changed or that a propagation visited since the last call to {@code action}, in
+     * index order. Only tracked with {@link SolveOptions#trackPropagations}.
+     */
+    void drainDirty(IntConsumer action) {
+        if (dirty == null) return;
+        for (int i = 0; i < dirty.length; i++) {
+            long bits = dirty[i];
+            dirty[i] = 0;
+            for (; bits != 0; bits &= bits - 1)
+                action.accept((i << 6) + Long.numberOfTrailingZeros(bits));
+        }
+    }
+
+    void propagate() {
+        propagations++;
+        if (listener == SolverListener.NONE) {
+            propagator.propagate();
+            return;
+        }
+        long start = System.nanoTime();
+        propagator.visited = propagator.queueHighWater = 0;
+        propagator.propagate();
+        listener.propagated(propagator.visited, removals - reportedRemovals, propagator.queueHighWater,
+                System.nanoTime() - start);
+        reportedRemovals = removals;
+    }
+
+    int collapseInto(int cell, int id) {
+        if (count(cell) <= 1) return collapsed[cell];
+        if (decisions != null)
+            decisions.record(cell, id, false);
+        listener.collapsed(cell, id);
+        for (int i = 0; i < words; i++) {
+            long others = domains.get(cell * words + i);
+            if (i == id >>> 6)
+                others &= ~(1L << id);
+            for (; others != 0; others &= others - 1)
+                propagator.ban(cell, (i << 6) + Long.numberOfTrailingZeros(others));
+        }
+        propagate();
+        return id;
+    }
+
+    void exclude(int cell, int id) {
+        if (!has(cell, id)) return;
+        if (decisions != null)
+            decisions.record(cell, id, true);
+        propagator.ban(cell, id);
+        propagate();
+    }
+
+    /**
+     * Bans every reality outside {@code allowed} without propagating, so several restrictions can share one pass.
+     */
+    void restrict(int cell, long[] allowed) {
+        for (int i = 0; i < words; i++)
+            for (long bits = domains.get(cell * words + i) & ~allowed[i]; bits != 0; bits &= bits - 1) {
+                int id = (i << 6) + Long.numberOfTrailingZeros(bits);
+                if (decisions != null)
+                    decisions.restrict(cell, id);
+                propagator.ban(cell, id);
+            }
+    }
+
+    /**
+     * Gives every cell within {@code radius} of {@code center} (a square or cube, clipped to the grid) its full domain
+     * back and bans what the surrounding domains no longer allow, ready to be propagated and collapsed again.
+     * Propagation must have settled, the trail is made permanent.
+     *
+     * @return the reopened cells
+     */
+    int[] reopen(int center, int radius) {
+        if (decisions != null)
+            decisions.reopen(center, radius);
+        int cx = x(center), cy = y(center), cz = z(center);
+        int x0 = Math.max(0, cx - radius), x1 = Math.min(width - 1, cx + radius);
+        int y0 = Math.max(0, cy - radius), y1 = Math.min(height - 1, cy + radius);
+        int z0 = Math.max(0, cz - radius), z1 = Math.min(depth - 1, cz + radius);
+        int[] region = new int[(x1 - x0 + 1) * (y1 - y0 + 1) * (z1 - z0 + 1)];
+        int n = 0;
+        long[] full = rules.fullDomain();
+        for (int z = z0; z <= z1; z++)
+            for (int y = y0; y <= y1; y++)
+                for (int x = x0; x <= x1; x++) {
+                    int cell = index(x, y, z);
+                    region[n++] = cell;
+                    for (int i = 0; i < words; i++)
+                        for (long bits = full[i] & ~domains.get(cell * words + i); bits != 0; bits &= bits - 1)
+                            restore(cell, (i << 6) + Long.numberOfTrailingZeros(bits));
+                }
+        propagator.forget(propagator.trailSize());
+        propagator.rebuild(region);
+
+        long[] domain = new long[words], allowed = new long[words];
+        for (int cell : region)
+            for (int edge = 0; edge < rules.edges(); edge++) {
+                int neighbour = neighbour(cell, edge);
+                if (neighbour < 0) continue;
+                readDomain(neighbour, domain);
+                rules.allowedNeighbours(domain, rules.opposite(edge), allowed);
+                for (int i = 0; i < words; i++)
+                    for (long bits = domains.get(cell * words + i) & ~allowed[i]; bits != 0; bits &= bits - 1)
+                        propagator.ban(cell, (i << 6) + Long.numberOfTrailingZeros(bits));
+            }
+        return region;
+    }
+
+    /**
+     * @return a copy of every domain, for {@link #rollback}
+     */
+    long[] snapshot() {
+        long[] snapshot = new long[cells() * words];
+        LongBuffer all = domains.duplicate();
+        all.rewind();
+        all.get(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Sets every domain back to a {@link #snapshot}, dropping whatever is pending and the trail.
+     */
+    void rollback(long[] snapshot) {
+        propagator.clearPending();
+        int[] changed = new int[16];
+        int n = 0;
+        for (int cell = 0; cell < cells(); cell++) {
+            boolean differs = false;
+            for (int i = cell * words, end = i + words; i < end; i++)
+                differs |= domains.get(i) != snapshot[i];
+            if (!differs) continue;
+            for (int i = 0; i < words; i++)
+                for (long bits = snapshot[cell * words + i] & ~domains.get(cell * words + i); bits != 0; bits &= bits - 1)
+                    restore(cell, (i << 6) + Long.numberOfTrailingZeros(bits));
+            for (int i = 0; i < words; i++)
+                for (long bits = domains.get(cell * words + i) & ~snapshot[cell * words + i]; bits != 0; bits &= bits - 1)
+                    remove(cell, (i << 6) + Long.numberOfTrailingZeros(bits));
+            if (n == changed.length)
+                changed = Arrays.copyOf(changed, n * 2);
+            changed[n++] = cell;
+        }
+        propagator.forget(propagator.trailSize());
+        propagator.rebuild(Arrays.copyOf(changed, n));
+        propagator.contradiction = false;
+    }
+
+    /**
+     * Draws one of the realities left in the cell in proportion to its weight.
+     */
+    int pick(int cell) {
+        double u = rnd.nextDouble();
+        if (collapsed[cell] >= 0) return collapsed[cell];
+        if (count(cell) == 0) return -1;
+        readDomain(cell, pickDomain);
+        AliasTable table = aliasTables.get(new DomainSignature(pickDomain));
+        if (table == null) {
+            long[] domain = pickDomain.clone();
+            table = new AliasTable(domain, rules);
+            aliasTables.put(new DomainSignature(domain), table);
+        }
+        return table.sample(u);
+    }
+
+    public Wave at(int x, int y) {
+        if (x < 0 || y < 0) return null;
+        if (x >= width || y >= height) return null;
+        return new Wave(this, index(x, y));
+    }
+
+    public List<Wave> waves() {
+        return new AbstractList<Wave>() {
+            @Override
+            public Wave get(int cell) {
+                return new Wave(SolveContext.this, cell);
+            }
+
+            @Override
+            public int size() {
+                return cells();
+            }
+        };
+    }
+
+    public RuleSet getRules() {
+        return rules;
+    }
+
+    public SolveOptions getOptions() {
+        return options;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+}
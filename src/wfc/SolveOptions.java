@@ -0,0 +1,130 @@
+package wfc;
+
+public class SolveOptions {
+    /**
+     * How removals spread to neighbouring cells. {@code SUPPORT} keeps AC-4 support counters, which makes each removal
+     * cheap but costs {@code realities * edges} ints per cell. {@code BITSET} intersects whole domains instead and needs
+     * no propagation state per cell, which is what lets very large grids fit in memory; a cell then costs its domain
+     * and about 40 bytes of bookkeeping. {@code PARALLEL} is {@code BITSET} with large propagations, such as the
+     * initial one or many constraints at once, split over bands of rows propagated on their own threads. Without
+     * backtracking, the cells around a contradiction may then come out differently from run to run.
+     */
+    public enum Propagation {SUPPORT, BITSET, PARALLEL}
+
+    // Grids needing more support counters than this default to bitset propagation
+    private static final long SUPPORT_COUNTER_BUDGET = 32L << 20;
+
+    final int width, height, depth;
+    final long seed;
+    boolean recordDecisions, offHeap, trackPropagations;
+    int trailDepth, maxRestarts = 100;
+    int parallelism = Runtime.getRuntime().availableProcessors();
+    Propagation propagation;
+    SolverListener listener = SolverListener.NONE;
+
+    public SolveOptions(int width, int height, long seed) {
+        this(width, height, 1, seed);
+    }
+
+    /**
+     * A grid of {@code depth} layers, for rules compiled for {@link Stencil#CUBE}.
+     */
+    public SolveOptions(int width, int height, int depth, long seed) {
+        if (width <= 0 || height <= 0 || depth <= 0 || (long) width * height * depth > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(String.format("Invalid grid size %dx%dx%d", width, height, depth));
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.seed = seed;
+    }
+
+    public SolveOptions recordDecisions(boolean recordDecisions) {
+        this.recordDecisions = recordDecisions;
+        return this;
+    }
+
+    /**
+     * Enables backtracking on contradictions. The trail keeps at most roughly {@code trailDepth} removals, older
+     * decision points are forgotten beyond that and a contradiction with nothing left to undo restarts the solve.
+     */
+    public SolveOptions backtracking(int trailDepth) {
+        if (trailDepth < 0)
+            throw new IllegalArgumentException("Negative trail depth " + trailDepth);
+        this.trailDepth = trailDepth;
+        return this;
+    }
+
+    public SolveOptions maxRestarts(int maxRestarts) {
+        this.maxRestarts = maxRestarts;
+        return this;
+    }
+
+    public SolveOptions propagation(Propagation propagation) {
+        this.propagation = propagation;
+        return this;
+    }
+
+    /**
+     * Number of threads {@link Propagation#PARALLEL} propagation splits the grid over.
+     */
+    public SolveOptions parallelism(int parallelism) {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("Invalid parallelism " + parallelism);
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    public SolveOptions listener(SolverListener listener) {
+        this.listener = listener == null ? SolverListener.NONE : listener;
+        return this;
+    }
+
+    /**
+     * Keeps cell domains in a direct buffer outside the Java heap.
+     */
+    public SolveOptions offHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+        return this;
+    }
+
+    /**
+     * Remembers for every cell which propagation last changed it and which cells changed since they were last drawn,
+     * for rendering.
+     */
+    public SolveOptions trackPropagations(boolean trackPropagations) {
+        this.trackPropagations = trackPropagations;
+        return this;
+    }
+
+    Propagation propagationFor(RuleSet rules) {
+        if (propagation != null) return propagation;
+        long counters = (long) width * height * depth * rules.size() * rules.edges();
+        return counters <= SUPPORT_COUNTER_BUDGET ? Propagation.SUPPORT : Propagation.BITSET;
+    }
+
+    /**
+     * SplitMix64 step, so neighbouring indices still get unrelated seeds.
+     */
+    public static long derivedSeed(long seed, int index) {
+        long z = seed + (index + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+}
@@ -0,0 +1,316 @@
+package wfc;
+
+import java.util.Arrays;
+
+public class Solver implements AutoCloseable {
+    private final RuleSet rules;
+    private final SolveOptions options;
+    private final boolean selecting;
+    private SolveContext ctx;
+    private final Constraints constraints;
+    private boolean pendingConstraints;
+
+    // Decision points that can still be undone: trail size and decision log size before the decision, cell and choice
+    private int[] levelTrail = new int[16], levelLog = new int[16], levelCell = new int[16], levelId = new int[16];
+    private int levels;
+    private int backtracks, restarts, steps;
+    private boolean failed;
+    private volatile boolean cancelled;
+
+    public Solver(RuleSet rules, SolveOptions options) {
+        this(rules, options, true);
+    }
+
+    Solver(RuleSet rules, SolveOptions options, boolean selecting) {
+        this.rules = rules;
+        this.options = options;
+        this.selecting = selecting;
+        this.ctx = new SolveContext(rules, options, options.seed, selecting);
+        this.constraints = new Constraints(rules, options.width, options.height, options.depth);
+    }
+
+    public SolveContext getContext() {
+        return ctx;
+    }
+
+    /**
+     * @return the decisions made so far, or null unless {@link SolveOptions#recordDecisions} was set
+     */
+    public DecisionLog getDecisionLog() {
+        return ctx.decisions;
+    }
+
+    public int getBacktracks() {
+        return backtracks;
+    }
+
+    public int getRestarts() {
+        return restarts;
+    }
+
+    /**
+     * @return true once backtracking ran out of restarts and the solve was abandoned
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    public int getSteps() {
+        return steps;
+    }
+
+    /**
+     * Asks a running {@link #solve()} to stop after its current step. Safe to call from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Stops the threads of {@link SolveOptions.Propagation#PARALLEL} propagation. They would exit after a second idle
+     * anyway; the solver stays usable and starts them again if it propagates.
+     */
+    @Override
+    public void close() {
+        ctx.propagator.close();
+    }
+
+    /**
+     * Limits the cell at (x, y) to the realities in {@code allowed}. Constraints are propagated together before the
+     * next step and are reapplied whenever backtracking has to restart.
+     */
+    public void constrain(int x, int y, long[] allowed) {
+        constraints.add(x, y, allowed);
+        ctx.restrict(ctx.index(x, y), allowed);
+        pendingConstraints = true;
+    }
+
+    /**
+     * Applies every restriction of {@code constraints} like {@link #constrain(int, int, long[])}, so however many
+     * cells they pin, they cost a single propagation.
+     */
+    public void constrain(Constraints constraints) {
+        if (constraints.getWidth() != options.width || constraints.getHeight() != options.height
+                || constraints.getDepth() != options.depth)
+            throw new IllegalArgumentException(String.format("Constraints for %dx%dx%d on a %dx%dx%d grid",
+                    constraints.getWidth(), constraints.getHeight(), constraints.getDepth(),
+                    options.width, options.height, options.depth));
+        long[] allowed = new long[rules.words()];
+        for (int i = 0; i < constraints.size(); i++) {
+            constraints.domain(i, allowed);
+            int cell = constraints.cell(i);
+            this.constraints.add(ctx.x(cell), ctx.y(cell), ctx.z(cell), allowed);
+            ctx.restrict(cell, allowed);
+        }
+        pendingConstraints = true;
+    }
+
+    /**
+     * Restricts the cells of the current context again, those within {@code radius} of {@code center} only unless that
+     * is negative.
+     */
+    private void reapplyConstraints(int center, int radius) {
+        long[] allowed = new long[rules.words()];
+        for (int i = 0; i < constraints.size(); i++) {
+            int cell = constraints.cell(i);
+            if (radius >= 0 && (Math.abs(ctx.x(cell) - ctx.x(center)) > radius
+                    || Math.abs(ctx.y(cell) - ctx.y(center)) > radius || Math.abs(ctx.z(cell) - ctx.z(center)) > radius))
+                continue;
+            constraints.domain(i, allowed);
+            ctx.restrict(cell, allowed);
+        }
+    }
+
+    private void propagateConstraints() {
+        pendingConstraints = false;
+        ctx.propagate();
+        // Nothing to undo, the constraints alone are unsatisfiable in these cells
+        if (options.trailDepth > 0 && ctx.propagator.isContradicted())
+            ctx.propagator.settle();
+    }
+
+    public Wave nextWave() {
+        int cell = nextCell();
+        return cell < 0 ? null : new Wave(ctx, cell);
+    }
+
+    private int nextCell() {
+        return ctx.entropyQueue == null ? -1 : ctx.entropyQueue.peek();
+    }
+
+    public boolean step() {
+        if (failed || cancelled) return false;
+        if (pendingConstraints)
+            propagateConstraints();
+        boolean observed = options.listener != SolverListener.NONE;
+        long start = observed ? System.nanoTime() : 0;
+        int cell = nextCell();
+        if (cell < 0) return false;
+        steps++;
+        int id = ctx.pick(cell);
+        if (observed)
+            options.listener.selected(cell, System.nanoTime() - start);
+        if (options.trailDepth == 0) {
+            ctx.collapseInto(cell, id);
+            return true;
+        }
+        pushLevel(cell, id);
+        ctx.collapseInto(cell, id);
+        if (ctx.propagator.isContradicted())
+            backtrack();
+        return !failed;
+    }
+
+    private void pushLevel(int cell, int id) {
+        Propagator propagator = ctx.propagator;
+        if (propagator.trailSize() > options.trailDepth) {
+            // Give up the older half of the decision points, their bans become permanent
+            int drop = levels - levels / 2;
+            int cut = drop < levels ? levelTrail[drop] : propagator.trailSize();
+            propagator.forget(cut);
+            levels -= drop;
+            System.arraycopy(levelTrail, drop, levelTrail, 0, levels);
+            System.arraycopy(levelLog, drop, levelLog, 0, levels);
+            System.arraycopy(levelCell, drop, levelCell, 0, levels);
+            System.arraycopy(levelId, drop, levelId, 0, levels);
+            for (int i = 0; i < levels; i++)
+                levelTrail[i] -= cut;
+        }
+        if (levels == levelTrail.length) {
+            levelTrail = Arrays.copyOf(levelTrail, levels * 2);
+            levelLog = Arrays.copyOf(levelLog, levels * 2);
+            levelCell = Arrays.copyOf(levelCell, levels * 2);
+            levelId = Arrays.copyOf(levelId, levels * 2);
+        }
+        levelTrail[levels] = propagator.trailSize();
+        levelLog[levels] = ctx.decisions == null ? 0 : ctx.decisions.size();
+        levelCell[levels] = cell;
+        levelId[levels++] = id;
+    }
+
+    private void backtrack() {
+        while (ctx.propagator.isContradicted()) {
+            if (levels == 0) {
+                restart();
+                return;
+            }
+            levels--;
+            backtracks++;
+            options.listener.backtracked(levels);
+            ctx.propagator.undo(levelTrail[levels]);
+            if (ctx.decisions != null)
+                ctx.decisions.truncate(levelLog[levels]);
+            ctx.exclude(levelCell[levels], levelId[levels]);
+        }
+    }
+
+    private void restart() {
+        levels = 0;
+        if (restarts >= options.maxRestarts) {
+            failed = true;
+            return;
+        }
+        restarts++;
+        long seed = SolveOptions.derivedSeed(options.seed, restarts);
+        options.listener.restarted(restarts, seed);
+        ctx.propagator.close();
+        ctx = new SolveContext(rules, options, seed, selecting);
+        reapplyConstraints(0, -1);
+        pendingConstraints = constraints.size() > 0;
+    }
+
+    /**
+     * Changes a finished or partial grid locally. The cells within {@code radius} of (x, y) are reopened, get their
+     * domains back from what surrounds them, and are collapsed again, with (x, y) limited to {@code allowed} unless
+     * that is null. A region that runs into a contradiction is rolled back and retried one cell wider, until it covers
+     * the whole grid, so the work depends on the size of the edit rather than of the grid.
+     * <p>
+     * Every undoable decision is given up, a repair cannot be backtracked.
+     *
+     * @return false if not even the whole grid could satisfy the edit, the grid is then left as it was
+     */
+    public boolean repair(int x, int y, int radius, long[] allowed) {
+        return repair(x, y, 0, radius, allowed);
+    }
+
+    /**
+     * {@link #repair(int, int, int, long[])} for the cells within {@code radius} of (x, y, z) in every direction.
+     */
+    public boolean repair(int x, int y, int z, int radius, long[] allowed) {
+        if (pendingConstraints)
+            propagateConstraints();
+        ctx.propagator.settle();
+        levels = 0;
+        int center = ctx.index(x, y, z);
+        long[] snapshot = ctx.snapshot();
+        int logSize = ctx.decisions == null ? 0 : ctx.decisions.size();
+        for (int r = radius; ; r++) {
+            int[] region = ctx.reopen(center, r);
+            if (resolve(region, center, r, allowed)) {
+                ctx.propagator.forget(ctx.propagator.trailSize());
+                return true;
+            }
+            ctx.rollback(snapshot);
+            if (ctx.decisions != null)
+                ctx.decisions.truncate(logSize);
+            if (region.length == ctx.cells()) return false;
+        }
+    }
+
+    /**
+     * Collapses a reopened region, lowest entropy first, taking the cells from the entropy queue. Replayed solvers have
+     * none and collapse the region in index order.
+     *
+     * @param region the reopened cells in ascending order
+     * @return false on a contradiction
+     */
+    private boolean resolve(int[] region, int center, int radius, long[] allowed) {
+        reapplyConstraints(center, radius);
+        if (allowed != null)
+            ctx.restrict(center, allowed);
+        ctx.propagate();
+        if (ctx.entropyQueue == null) {
+            for (int cell : region) {
+                if (ctx.propagator.isContradicted()) return false;
+                if (ctx.count(cell) < 2) continue;
+                steps++;
+                ctx.collapseInto(cell, ctx.pick(cell));
+            }
+            return !ctx.propagator.isContradicted();
+        }
+        // Uncollapsed cells of a partial grid outside the region leave the queue meanwhile, so its top is always the
+        // next cell of the region
+        int[] outside = ctx.entropyQueue.retain(cell -> Arrays.binarySearch(region, cell) >= 0);
+        try {
+            while (!ctx.propagator.isContradicted()) {
+                int next = ctx.entropyQueue.peek();
+                if (next < 0) return true;
+                steps++;
+                ctx.collapseInto(next, ctx.pick(next));
+            }
+            return false;
+        } finally {
+            for (int cell : outside)
+                if (ctx.count(cell) > 1)
+                    ctx.entropyQueue.add(cell);
+        }
+    }
+
+    /**
+     * Collapses waves until none are left uncertain.
+     *
+     * @return reality ids in row-major order, -1 for cells that ended in a contradiction
+     */
+    public int[] solve() {
+        while (step()) ;
+        return getIds();
+    }
+
+    public int[] getIds() {
+        return ctx.collapsed.clone();
+    }
+}
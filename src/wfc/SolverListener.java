@@ -0,0 +1,53 @@
+package wfc;
+
+/**
+ * Receives what a solve is doing, as plain numbers rather than formatted text. Every method does nothing by default
+ * and solves without a listener skip the timing altogether, so observing costs nothing unless asked for.
+ * <p>
+ * Callbacks run on the solving thread. A listener shared between solves running in parallel has to be thread safe,
+ * like {@link SolverMetrics}.
+ */
+public interface SolverListener {
+    SolverListener NONE = new SolverListener() {
+    };
+
+    /**
+     * A grid was built and its initial propagation finished, also after every restart.
+     */
+    default void initialized(int cells, long nanos) {
+    }
+
+    /**
+     * The solver chose the next cell to collapse.
+     */
+    default void selected(int cell, long nanos) {
+    }
+
+    default void collapsed(int cell, int id) {
+    }
+
+    /**
+     * A propagation reached its fixpoint or stopped at a contradiction.
+     *
+     * @param visited        cells, or bans for support counters, taken off the propagation queue
+     * @param removed        realities removed since the previous propagation, including the ones that started it
+     * @param queueHighWater most entries waiting in the propagation queue at once
+     */
+    default void propagated(int visited, int removed, int queueHighWater, long nanos) {
+    }
+
+    /**
+     * A cell lost its last reality.
+     */
+    default void contradiction(int cell) {
+    }
+
+    /**
+     * A decision was undone, {@code levels} decision points are left.
+     */
+    default void backtracked(int levels) {
+    }
+
+    default void restarted(int restart, long seed) {
+    }
+}
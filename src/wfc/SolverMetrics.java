@@ -0,0 +1,105 @@
+package wfc;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what any number of solves did and keeps a power-of-two histogram of propagation times. Safe to share
+ * between solves running in parallel.
+ */
+public class SolverMetrics implements SolverListener {
+    private final LongAdder grids = new LongAdder(), collapses = new LongAdder(), propagations = new LongAdder();
+    private final LongAdder visited = new LongAdder(), removed = new LongAdder(), contradictions = new LongAdder();
+    private final LongAdder backtracks = new LongAdder(), restarts = new LongAdder();
+    private final LongAdder initNanos = new LongAdder(), selectNanos = new LongAdder(), propagateNanos = new LongAdder();
+    private final LongAccumulator queueHighWater = new LongAccumulator(Math::max, 0);
+    // Bucket i counts propagations that took [2^i, 2^(i+1)) nanoseconds
+    private final AtomicLongArray histogram = new AtomicLongArray(64);
+
+    @Override
+    public void initialized(int cells, long nanos) {
+        grids.increment();
+        initNanos.add(nanos);
+    }
+
+    @Override
+    public void selected(int cell, long nanos) {
+        selectNanos.add(nanos);
+    }
+
+    @Override
+    public void collapsed(int cell, int id) {
+        collapses.increment();
+    }
+
+    @Override
+    public void propagated(int visited, int removed, int queueHighWater, long nanos) {
+        propagations.increment();
+        this.visited.add(visited);
+        this.removed.add(removed);
+        this.queueHighWater.accumulate(queueHighWater);
+        propagateNanos.add(nanos);
+        histogram.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(nanos, 1)));
+    }
+
+    @Override
+    public void contradiction(int cell) {
+        contradictions.increment();
+    }
+
+    @Override
+    public void backtracked(int levels) {
+        backtracks.increment();
+    }
+
+    @Override
+    public void restarted(int restart, long seed) {
+        restarts.increment();
+    }
+
+    public long getCollapses() {
+        return collapses.sum();
+    }
+
+    public long getPropagations() {
+        return propagations.sum();
+    }
+
+    public long getContradictions() {
+        return contradictions.sum();
+    }
+
+    /**
+     * @return an upper bound of the propagation time below which {@code fraction} of all propagations finished
+     */
+    public long propagationPercentile(double fraction) {
+        long total = propagations.sum(), seen = 0;
+        for (int i = 0; i < 64; i++) {
+            seen += histogram.get(i);
+            if (seen > 0 && seen >= fraction * total)
+                return i == 63 ? Long.MAX_VALUE : 1L << (i + 1);
+        }
+        return 0;
+    }
+
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        long propagations = this.propagations.sum();
+        sb.append(String.format("grids %d, collapses %d, propagations %d, contradictions %d, backtracks %d, restarts %d%n",
+                grids.sum(), collapses.sum(), propagations, contradictions.sum(), backtracks.sum(), restarts.sum()));
+        sb.append(String.format("visited %d (%.1f per propagation), removed %d, queue high water %d%n",
+                visited.sum(), propagations == 0 ? 0.0 : (double) visited.sum() / propagations, removed.sum(),
+                queueHighWater.get()));
+        sb.append(String.format("time: init %.2fms, selection %.2fms, propagation %.2fms%n",
+                initNanos.sum() / 1e6, selectNanos.sum() / 1e6, propagateNanos.sum() / 1e6));
+        sb.append(String.format("propagation: p50 < %dus, p90 < %dus, p99 < %dus%n", propagationPercentile(0.5) / 1000,
+                propagationPercentile(0.9) / 1000, propagationPercentile(0.99) / 1000));
+        for (int i = 0; i < 64; i++) {
+            long count = histogram.get(i);
+            if (count > 0)
+                sb.append(String.format("  %10dns %d%n", 1L << i, count));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,84 @@
+package wfc;
+
+/**
+ * The directions a cell has neighbours in, as unit steps along x, y and z, with the direction pointing back for each.
+ * Tilesets of {@link TextureMap} are flat and use {@link #SQUARE}, voxel tilesets use {@link #CUBE}, which adds
+ * {@link #UP} and {@link #DOWN} to the four edges. The first four directions of both are the same, so
+ * {@code (direction + 2) % 4} still is the opposite of a 2D edge.
+ * <p>
+ * Cells are indexed {@code (z * height + y) * width + x}, so a step in a direction is a fixed offset of the index once
+ * the grid size is known, see {@link #offsets}.
+ */
+public final class Stencil {
+    public static final int TOP = 0, RIGHT = 1, BOTTOM = 2, LEFT = 3, UP = 4, DOWN = 5;
+
+    public static final Stencil SQUARE = new Stencil(new int[]{0, 1, 0, -1}, new int[]{-1, 0, 1, 0}, new int[]{0, 0, 0, 0});
+    public static final Stencil CUBE = new Stencil(new int[]{0, 1, 0, -1, 0, 0}, new int[]{-1, 0, 1, 0, 0, 0},
+            new int[]{0, 0, 0, 0, 1, -1});
+
+    private final int[] dx, dy, dz, opposite;
+
+    private Stencil(int[] dx, int[] dy, int[] dz) {
+        this.dx = dx;
+        this.dy = dy;
+        this.dz = dz;
+        this.opposite = new int[dx.length];
+        for (int d = 0; d < dx.length; d++)
+            for (int o = 0; o < dx.length; o++)
+                if (dx[o] == -dx[d] && dy[o] == -dy[d] && dz[o] == -dz[d])
+                    opposite[d] = o;
+    }
+
+    /**
+     * @return true if no direction leaves the layer of the cell
+     */
+    public boolean isFlat() {
+        for (int d : dz)
+            if (d != 0) return false;
+        return true;
+    }
+
+    public int directions() {
+        return opposite.length;
+    }
+
+    public int opposite(int direction) {
+        return opposite[direction];
+    }
+
+    public int dx(int direction) {
+        return dx[direction];
+    }
+
+    public int dy(int direction) {
+        return dy[direction];
+    }
+
+    public int dz(int direction) {
+        return dz[direction];
+    }
+
+    /**
+     * @return how far the index of the neighbour in every direction is from that of a cell of a grid this wide and
+     * high
+     */
+    int[] offsets(int width, int height) {
+        int[] offsets = new int[directions()];
+        for (int d = 0; d < offsets.length; d++)
+            offsets[d] = (dz[d] * height + dy[d]) * width + dx[d];
+        return offsets;
+    }
+
+    /**
+     * @return a bit for every direction in which the cell at (x, y, z) has a neighbour inside the grid
+     */
+    int inside(int x, int y, int z, int width, int height, int depth) {
+        int mask = 0;
+        for (int d = 0; d < directions(); d++) {
+            int nx = x + dx[d], ny = y + dy[d], nz = z + dz[d];
+            if (nx >= 0 && ny >= 0 && nz >= 0 && nx < width && ny < height && nz < depth)
+                mask |= 1 << d;
+        }
+        return mask;
+    }
+}
@@ -0,0 +1,145 @@
+package wfc;
+
+import java.util.Arrays;
+
+/**
+ * AC-4 style propagation. Every cell keeps, per reality and edge, the number of realities in the neighbour on that
+ * edge that are still compatible with it. Banning a reality only decrements the counters it contributed to, and a
+ * reality is banned in turn exactly when one of its counters drops to zero.
+ */
+class SupportPropagator extends Propagator {
+    private final int edges, stride;
+    private final int[] support;
+    // Bans waiting to be propagated. They live on the trail when it is kept and in the pending arrays otherwise.
+    private int[] pendingCells = new int[64], pendingIds = new int[64];
+    private int[] stack = new int[64];
+    private int stackSize;
+    private boolean[] propagated = new boolean[64];
+
+    SupportPropagator(SolveContext ctx, boolean keepTrail) {
+        super(ctx, keepTrail);
+        int n = rules.size();
+        this.edges = rules.edges();
+        this.stride = n * edges;
+        int[] initial = new int[stride];
+        for (int id = 0; id < n; id++)
+            for (int edge = 0; edge < edges; edge++)
+                initial[id * edges + edge] = rules.compatibleIds(id, edge).length;
+        this.support = new int[SolveContext.arrayLength((long) ctx.cells() * stride, "support counters")];
+        for (int cell = 0; cell < ctx.cells(); cell++)
+            System.arraycopy(initial, 0, support, cell * stride, stride);
+    }
+
+    @Override
+    void ban(int cell, int id) {
+        if (!ctx.remove(cell, id)) return;
+        boolean alive = trail(cell, id);
+        if (keepTrail)
+            propagated[trailSize - 1] = false;
+        if (!alive) return;
+        int entry;
+        if (keepTrail) {
+            entry = trailSize - 1;
+        } else {
+            if (stackSize == pendingCells.length) {
+                pendingCells = Arrays.copyOf(pendingCells, stackSize * 2);
+                pendingIds = Arrays.copyOf(pendingIds, stackSize * 2);
+            }
+            entry = stackSize;
+            pendingCells[entry] = cell;
+            pendingIds[entry] = id;
+        }
+        if (stackSize == stack.length)
+            stack = Arrays.copyOf(stack, stackSize * 2);
+        stack[stackSize++] = entry;
+        if (stackSize > queueHighWater)
+            queueHighWater = stackSize;
+    }
+
+    @Override
+    void grownTrail(int capacity) {
+        propagated = Arrays.copyOf(propagated, capacity);
+    }
+
+    @Override
+    void drain(boolean stopOnContradiction) {
+        while (stackSize > 0) {
+            // The caller is going to undo the rest anyway
+            if (contradiction && stopOnContradiction) return;
+            int entry = stack[--stackSize];
+            visited++;
+            int cell, id;
+            if (keepTrail) {
+                cell = trailCells[entry];
+                id = trailIds[entry];
+                propagated[entry] = true;
+            } else {
+                cell = pendingCells[entry];
+                id = pendingIds[entry];
+            }
+            ctx.touched(cell);
+            for (int edge = 0; edge < edges; edge++) {
+                int neighbour = ctx.neighbour(cell, edge);
+                if (neighbour < 0) continue;
+                int offset = neighbour * stride + rules.opposite(edge);
+                for (int other : rules.compatibleIds(id, edge))
+                    if (--support[offset + other * edges] == 0)
+                        ban(neighbour, other);
+            }
+        }
+    }
+
+    @Override
+    void unpropagate(int entry) {
+        if (!propagated[entry]) return;
+        int cell = trailCells[entry], id = trailIds[entry];
+        for (int edge = 0; edge < edges; edge++) {
+            int neighbour = ctx.neighbour(cell, edge);
+            if (neighbour < 0) continue;
+            int offset = neighbour * stride + rules.opposite(edge);
+            for (int other : rules.compatibleIds(id, edge))
+                support[offset + other * edges]++;
+        }
+    }
+
+    @Override
+    void clearPending() {
+        stackSize = 0;
+    }
+
+    /**
+     * Counts the support of every reality afresh from the domains around it, as the constructor does for full ones.
+     */
+    @Override
+    void rebuild(int[] cells) {
+        long[] marked = new long[(ctx.cells() + 63) >>> 6];
+        for (int cell : cells) {
+            marked[cell >>> 6] |= 1L << cell;
+            for (int edge = 0; edge < edges; edge++) {
+                int neighbour = ctx.neighbour(cell, edge);
+                if (neighbour >= 0)
+                    marked[neighbour >>> 6] |= 1L << neighbour;
+            }
+        }
+        long[] domain = new long[rules.words()];
+        for (int w = 0; w < marked.length; w++)
+            for (long bits = marked[w]; bits != 0; bits &= bits - 1) {
+                int cell = (w << 6) + Long.numberOfTrailingZeros(bits);
+                for (int edge = 0; edge < edges; edge++) {
+                    int neighbour = ctx.neighbour(cell, edge);
+                    if (neighbour >= 0)
+                        ctx.readDomain(neighbour, domain);
+                    for (int id = 0; id < rules.size(); id++)
+                        support[cell * stride + id * edges + edge] = neighbour < 0
+                                ? rules.compatibleIds(id, edge).length
+                                : rules.countCompatible(id, edge, domain);
+                }
+            }
+    }
+
+    @Override
+    void forget(int size) {
+        System.arraycopy(propagated, size, propagated, 0, trailSize - size);
+        super.forget(size);
+    }
+}
@@ -2,33 +2,72 @@ package wfc;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
-import java.awt.geom.AffineTransform;
-import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.*;
 
 public class TextureMap {
 
-    private static SocketProvider socketProvider;
 
     public static void main(String[] args) throws IOException {
         TextureMap.fromFileConfig("pipes");
     }
 
+    // Source and textures are null when loaded from the TilesetCache, realities hold every texture that is drawn
     final BufferedImage source;
+    private final SocketProvider socketProvider;
     Texture[] textures;
     List<Reality> realities;
+    RuleSet rules;
 
     Map<String, Reality> realitiesByName;
 
     private final int textureWidth, tilemapRows, tilemapCols;
 
+    /**
+     * Loads a tileset from its compiled {@link TilesetCache} if that is up to date with the .png and .configuration,
+     * otherwise parses them and rewrites the cache. {@code -Dwfc.tilesetCache=false} always parses and leaves the cache
+     * alone.
+     */
     public static TextureMap fromFileConfig(String path) throws IOException {
-        BufferedImage source = ImageIO.read(new File(String.format("res/tiles/%s.png", path)));
-        Scanner scn = new Scanner(new File(String.format("res/tiles/%s.configuration", path)));
+        if (!TilesetCache.ENABLED)
+            return parse(new File(String.format("res/tiles/%s.png", path)),
+                    new File(String.format("res/tiles/%s.configuration", path)), new HashMap<>());
+        return fromFileConfig(path, TilesetCache.key(Paths.get(String.format("res/tiles/%s.png", path)),
+                Paths.get(String.format("res/tiles/%s.configuration", path))));
+    }
+
+    /**
+     * @param key the {@link TilesetCache#key} of the tileset, for callers that have hashed it already
+     */
+    static TextureMap fromFileConfig(String path, byte[] key) throws IOException {
+        Path png = Paths.get(String.format("res/tiles/%s.png", path));
+        Path configuration = Paths.get(String.format("res/tiles/%s.configuration", path));
+        Path cache = TilesetCache.pathFor(path);
+        TextureMap tm = TilesetCache.read(cache, key);
+        if (tm != null) return tm;
+
+        Map<Integer, String> labels = new HashMap<>();
+        tm = parse(png.toFile(), configuration.toFile(), labels);
+        try {
+            TilesetCache.write(cache, key, tm, labels);
+        } catch (IOException e) {
+            System.err.format("Could not write %s: %s%n", cache, e);
+        }
+        return tm;
+    }
+
+    /**
+     * @param labels receives the socket labels given in the configuration
+     */
+    private static TextureMap parse(File png, File configuration, Map<Integer, String> labels) throws IOException {
+        BufferedImage source = ImageIO.read(png);
+        Scanner scn = new Scanner(configuration);
         String line = scn.nextLine().strip();
         assert line.equals("#texturemap");
         int textureWidth = scn.nextInt();
@@ -44,24 +83,34 @@ public class TextureMap {
         int i = 0;
         for (int row = 0; row < tilemapRows && i < numTextures; row++)
             for (int col = 0; col < tilemapCols && i < numTextures; col++) {
-                textures[i++] = new Texture(source.getSubimage(col * textureWidth, row * textureWidth, textureWidth, textureWidth), col, row);
+                int[] pixels = source.getRGB(col * textureWidth, row * textureWidth, textureWidth, textureWidth, null, 0, textureWidth);
+                textures[i++] = new Texture(pixels, textureWidth, col, row);
             }
 
         // Read socket config
         String socketPixelPointLine = scn.nextLine().strip();
-        socketProvider = SocketProvider.fromConfigLine(socketPixelPointLine, textureWidth);
-        TextureMap tm = new TextureMap(source, textures, textureWidth, tilemapRows, tilemapCols);
-
-        // Read tile config
-        line = scn.nextLine();
+        SocketProvider socketProvider = SocketProvider.fromConfigLine(socketPixelPointLine, textureWidth);
+        TextureMap tm = new TextureMap(source, socketProvider, textures, textureWidth, tilemapRows, tilemapCols);
+
+        // Read colours to treat as the same, then tile config
+        line = scn.nextLine().strip();
+        if (line.equals("#colours")) {
+            while (!(line = scn.nextLine().strip()).equals("#end")) {
+                String[] colours = line.split(" ");
+                socketProvider.addColourAlias(Integer.parseUnsignedInt(colours[0], 16),
+                        Integer.parseUnsignedInt(colours[1], 16));
+            }
+            line = scn.nextLine().strip();
+        }
         assert line.equals("#tiles");
         for (i = 0; i < numTextures; i++) {
             int rotateMap = scn.nextInt();
             int weight = scn.nextInt();
             String name = scn.nextLine().strip();
-            Reality r = new Reality(name, weight, textures[i]);
+            Reality r = new Reality(name, weight, textures[i], socketProvider);
             while (rotateMap > 0) {
                 if ((rotateMap & 1) == 1) {
+                    r.id = tm.realities.size();
                     tm.realities.add(r);
                     tm.realitiesByName.put(r.name, r);
                     r = r.rotatedReality();
@@ -77,6 +126,7 @@ public class TextureMap {
                     if (line.equals("#end"))
                         break;
                     String[] labelLine = line.split(" ");
+                    labels.put(Integer.parseInt(labelLine[0]), labelLine[1]);
                     socketProvider.addLabel(Integer.parseInt(labelLine[0]), labelLine[1]);
                 }
             }else{
@@ -84,14 +134,14 @@ public class TextureMap {
             }
         }
         scn.close();
+        tm.rules = RuleSet.compile(tm.realities);
         System.err.format("Generated realities %d%n", tm.realities.size());
-        for (Reality r : tm.realities)
-            System.err.println(r);
         return tm;
     }
 
-    public TextureMap(BufferedImage source, Texture[] textures, int textureWidth, int tilemapRows, int tilemapCols) {
+    public TextureMap(BufferedImage source, SocketProvider socketProvider, Texture[] textures, int textureWidth, int tilemapRows, int tilemapCols) {
         this.source = source;
+        this.socketProvider = socketProvider;
         this.textures = textures;
         this.textureWidth = textureWidth;
         this.tilemapRows = tilemapRows;
@@ -100,12 +150,12 @@ public class TextureMap {
         realitiesByName = new TreeMap<>();
     }
 
-    public static SocketProvider getSocketProvider() {
+    public SocketProvider getSocketProvider() {
         return socketProvider;
     }
 
-    public Wave getWholeWave(int x, int y) {
-        return new Wave(x, y, getTextureWidth(), realities);
+    public RuleSet getRules() {
+        return rules;
     }
 
     public int getTextureWidth() {
@@ -120,23 +170,39 @@ public class TextureMap {
         return tilemapRows;
     }
 
+    /**
+     * A square texture kept as its ARGB raster. The image is only created once something draws it, so headless solves
+     * never allocate one.
+     */
     static class Texture {
         private final int w, sourceX, sourceY;
-        private final BufferedImage image;
-        private final AffineTransformOp rotateTransform;
-
-        Texture(BufferedImage bi, int sourceX, int sourceY) {
-            this.image = bi;
+        private final int[] pixels;
+        private volatile BufferedImage image;
+
+        /**
+         * @param pixels {@code w * w} ARGB values in row-major order
+         */
+        Texture(int[] pixels, int w, int sourceX, int sourceY) {
+            this.pixels = pixels;
+            this.w = w;
             this.sourceX = sourceX;
             this.sourceY = sourceY;
-            this.w = bi.getWidth();
-            this.rotateTransform = new AffineTransformOp(AffineTransform.getRotateInstance(Math.PI / 2, (double) w / 2, (double) w / 2), AffineTransformOp.TYPE_BILINEAR);
         }
 
         public BufferedImage getImage() {
+            BufferedImage image = this.image;
+            if (image == null) {
+                image = new BufferedImage(w, w, BufferedImage.TYPE_INT_ARGB);
+                System.arraycopy(pixels, 0, ((DataBufferInt) image.getRaster().getDataBuffer()).getData(), 0, pixels.length);
+                this.image = image;
+            }
             return image;
         }
 
+        int[] getPixels() {
+            return pixels;
+        }
+
         public int getW() {
             return w;
         }
@@ -150,25 +216,29 @@ public class TextureMap {
         }
 
         public int getColor(int x, int y) {
-            return image.getRGB(x, y);
+            return pixels[y * w + x];
         }
 
-
+        /**
+         * @return this texture turned a quarter clockwise, pixel for pixel
+         */
         public Texture rotate90() {
-            BufferedImage bufferedImage = getImage();
-            BufferedImage out = new BufferedImage(bufferedImage.getHeight(), bufferedImage.getWidth(), BufferedImage.TYPE_4BYTE_ABGR);
-            rotateTransform.filter(bufferedImage, out);
-            return new Texture(out, sourceX, sourceY);
+            int[] rotated = new int[pixels.length];
+            for (int y = 0, i = 0; y < w; y++)
+                for (int x = 0; x < w; x++)
+                    rotated[i++] = pixels[(w - 1 - x) * w + y];
+            return new Texture(rotated, w, sourceX, sourceY);
         }
 
     }
 
     public void showCompatible(String r, int edge) {
-        int otherE = (edge + 2) % 4;
         Reality real = realitiesByName.get(r);
         System.out.format("Compatible with %s on edge %d:%n", real, edge);
+        long[] compatible = new long[rules.words()];
+        rules.allowedNeighbours(rules.singleton(real.id), edge, compatible);
         for (Reality other : this.realities) {
-            if (other.sockets[otherE] == real.sockets[edge])
+            if (RuleSet.contains(compatible, other.id))
                 System.out.println(other);
         }
     }
@@ -177,11 +247,14 @@ public class TextureMap {
 
         private final List<Integer> socketPoints;// = List.of(10, 40, 64, 128 - 10, 128 - 40);
         private final Map<Integer, String> socketLabels;
+        // Colours of the art that are read as another colour when computing sockets
+        private final Map<Integer, Integer> colourAliases;
         private static final int MAD = 43;
 
         SocketProvider(List<Integer> socketPoints) {
             this.socketPoints = socketPoints;
             this.socketLabels = new HashMap<>();
+            this.colourAliases = new HashMap<>();
         }
 
         public static SocketProvider fromConfigLine(String line, int textureWidth) {
@@ -197,10 +270,22 @@ public class TextureMap {
             return new SocketProvider(socketPoints);
         }
 
+        List<Integer> getSocketPoints() {
+            return socketPoints;
+        }
+
         public void addLabel(Integer i, String s) {
             this.socketLabels.put(i, s);
         }
 
+        /**
+         * Makes socket points of colour {@code colour} match those of {@code canonical}, for art whose edges are off by
+         * a shade.
+         */
+        public void addColourAlias(int colour, int canonical) {
+            this.colourAliases.put(colour, canonical);
+        }
+
         private String whichSocket(int sock) {
             if (!socketLabels.containsKey(sock)) {
                 socketLabels.put(sock, "" + sock);
@@ -234,20 +319,19 @@ public class TextureMap {
 
         private int getColorTexture(Texture t, int x, int y) {
             int c = t.getColor(x, y);
-            if (c == 16777215) return 0; // Weird bug with color in buffer
-            if (c == -6299137) return -6889985;
-            return c;
+            if (c >>> 24 == 0) return 0; // Transparent is transparent, whatever colour it is stored with
+            return colourAliases.getOrDefault(c, c);
         }
 
         public int[] getSockets(Texture texture) {
             int w = texture.getW();
-            int[] sockets = new int[4];
+            int[] sockets = new int[Stencil.SQUARE.directions()];
             w--;
             for (int p : socketPoints) {
-                sockets[0] = sockets[0] * MAD + getColorTexture(texture, p, 0);
-                sockets[1] = sockets[1] * MAD + getColorTexture(texture, w, p);
-                sockets[2] = sockets[2] * MAD + getColorTexture(texture, p, w);
-                sockets[3] = sockets[3] * MAD + getColorTexture(texture, 0, p);
+                sockets[Stencil.TOP] = sockets[Stencil.TOP] * MAD + getColorTexture(texture, p, 0);
+                sockets[Stencil.RIGHT] = sockets[Stencil.RIGHT] * MAD + getColorTexture(texture, w, p);
+                sockets[Stencil.BOTTOM] = sockets[Stencil.BOTTOM] * MAD + getColorTexture(texture, p, w);
+                sockets[Stencil.LEFT] = sockets[Stencil.LEFT] * MAD + getColorTexture(texture, 0, p);
             }
             return sockets;
         }
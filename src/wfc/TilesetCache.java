@@ -0,0 +1,173 @@
+package wfc;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled form of a tileset, stored next to it as {@code <name>.wfct}: every rotated reality with its pixels, sockets,
+ * weight and name, plus the socket points and labels. Loading it is a single memory mapped read, without ImageIO,
+ * parsing, image transforms or socket sampling.
+ * <p>
+ * The cache is keyed by a SHA-256 of the .png and .configuration it was compiled from, a cache whose key does not
+ * match is stale and gets rewritten.
+ * <p>
+ * On disk: magic, version, the 32 byte key, texture width, tilemap rows and cols, socket points, labels, and for every
+ * reality its name, weight, four sockets, source position and {@code width * width} ARGB pixels. All numbers are big
+ * endian ints, strings are a length followed by UTF-8 bytes.
+ */
+class TilesetCache {
+    private static final int MAGIC = 0x57464354, VERSION = 2;
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("wfc.tilesetCache", "true"));
+
+    private TilesetCache() {
+    }
+
+    static Path pathFor(String name) {
+        return Paths.get(String.format("res/tiles/%s.wfct", name));
+    }
+
+    /**
+     * @return SHA-256 over both source files, each prefixed with its length
+     */
+    static byte[] key(Path png, Path configuration) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (Path file : new Path[]{png, configuration}) {
+            byte[] bytes = Files.readAllBytes(file);
+            digest.update(ByteBuffer.allocate(Long.BYTES).putLong(bytes.length).array());
+            digest.update(bytes);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * @return the tileset, or null if there is no cache, it does not match {@code key} or it is truncated or corrupt
+     */
+    static TextureMap read(Path path, byte[] key) throws IOException {
+        if (!Files.isRegularFile(path)) return null;
+        MappedByteBuffer in;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            return read(in, key);
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            // Left by an interrupted write or damaged since, it is rebuilt like a stale one
+            System.err.format("Ignoring corrupt %s: %s%n", path, e);
+            return null;
+        }
+    }
+
+    private static TextureMap read(ByteBuffer in, byte[] key) {
+        if (in.remaining() < 8 || in.getInt() != MAGIC || in.getInt() != VERSION) return null;
+        byte[] stored = new byte[key.length];
+        in.get(stored);
+        if (!Arrays.equals(stored, key)) return null;
+
+        int textureWidth = in.getInt(), rows = in.getInt(), cols = in.getInt();
+        List<Integer> socketPoints = new ArrayList<>();
+        for (int i = in.getInt(); i > 0; i--)
+            socketPoints.add(in.getInt());
+        TextureMap.SocketProvider socketProvider = new TextureMap.SocketProvider(socketPoints);
+        for (int i = in.getInt(); i > 0; i--)
+            socketProvider.addLabel(in.getInt(), readString(in));
+
+        TextureMap tm = new TextureMap(null, socketProvider, null, textureWidth, rows, cols);
+        int count = in.getInt();
+        for (int id = 0; id < count; id++) {
+            String name = readString(in);
+            int weight = in.getInt();
+            int[] sockets = new int[Stencil.SQUARE.directions()];
+            for (int edge = 0; edge < sockets.length; edge++)
+                sockets[edge] = in.getInt();
+            int sourceX = in.getInt(), sourceY = in.getInt();
+            int[] pixels = new int[checkedLength(in, (long) textureWidth * textureWidth, Integer.BYTES)];
+            in.asIntBuffer().get(pixels);
+            in.position(in.position() + pixels.length * Integer.BYTES);
+            TextureMap.Texture texture = new TextureMap.Texture(pixels, textureWidth, sourceX, sourceY);
+            Reality r = new Reality(name, weight, texture, socketProvider, sockets);
+            r.id = id;
+            tm.realities.add(r);
+            tm.realitiesByName.put(r.name, r);
+        }
+        tm.rules = RuleSet.compile(tm.realities);
+        return tm;
+    }
+
+    /**
+     * Writes to a temporary file first, so concurrent readers never map a half written cache.
+     */
+    static void write(Path path, byte[] key, TextureMap tm, Map<Integer, String> labels) throws IOException {
+        Path tmp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.write(key);
+                int w = tm.getTextureWidth();
+                out.writeInt(w);
+                out.writeInt(tm.getTilemapRows());
+                out.writeInt(tm.getTilemapCols());
+                List<Integer> socketPoints = tm.getSocketProvider().getSocketPoints();
+                out.writeInt(socketPoints.size());
+                for (int p : socketPoints)
+                    out.writeInt(p);
+                out.writeInt(labels.size());
+                for (Map.Entry<Integer, String> label : labels.entrySet()) {
+                    out.writeInt(label.getKey());
+                    writeString(out, label.getValue());
+                }
+                out.writeInt(tm.realities.size());
+                for (Reality r : tm.realities) {
+                    writeString(out, r.name);
+                    out.writeInt(r.weight);
+                    for (int socket : r.sockets)
+                        out.writeInt(socket);
+                    out.writeInt(r.texture.getSourceX());
+                    out.writeInt(r.texture.getSourceY());
+                    for (int argb : r.texture.getPixels())
+                        out.writeInt(argb);
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * @return {@code count}, once it is known that many values of {@code size} bytes are left in {@code in}
+     */
+    private static int checkedLength(ByteBuffer in, long count, int size) {
+        if (count < 0 || count * size > in.remaining())
+            throw new BufferUnderflowException();
+        return (int) count;
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[checkedLength(in, in.getInt(), 1)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
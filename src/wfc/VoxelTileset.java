@@ -0,0 +1,123 @@
+package wfc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A tileset of voxels, {@code res/tiles/<name>.voxels}. Voxels have no textures, only a name, a weight and a socket
+ * for each of the six faces of {@link Stencil#CUBE}, and two voxels may be neighbours when the faces they turn towards
+ * each other have the same socket.
+ * <p>
+ * One voxel per line: {@code <name> <weight> <rotations> <top> <right> <bottom> <left> <up> <down>}, where sockets are
+ * any labels and {@code rotations} (1, 2 or 4) is how many quarter turns about the vertical axis are added, named
+ * {@code <name>1} and so on. A turn moves the top socket to the right face; up and down keep their sockets, so they
+ * should look the same from every side. Blank lines and lines starting with {@code #} are skipped.
+ */
+public class VoxelTileset {
+    private final List<String> names = new ArrayList<>();
+    private final List<Integer> weights = new ArrayList<>();
+    private final List<int[]> sockets = new ArrayList<>();
+    private RuleSet rules;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: VoxelTileset <tileset> <width>x<height>x<depth> <seed> [trailDepth]");
+            System.exit(1);
+        }
+        VoxelTileset tileset = fromFile(args[0]);
+        String[] size = args[1].split("x");
+        if (size.length != 3) {
+            System.err.println("Size must be <width>x<height>x<depth>");
+            System.exit(1);
+        }
+        int width = Integer.parseInt(size[0]), height = Integer.parseInt(size[1]), depth = Integer.parseInt(size[2]);
+        long seed = Long.parseLong(args[2]);
+        int trailDepth = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+        long start = System.nanoTime();
+        Solver solver = new Solver(tileset.getRules(), new SolveOptions(width, height, depth, seed).backtracking(trailDepth));
+        int[] ids = solver.solve();
+        long nanos = System.nanoTime() - start;
+        System.err.format("Solved %dx%dx%d voxels of %d realities in %.2fs, %d backtracks, %d restarts%n", width, height,
+                depth, tileset.getRules().size(), nanos / 1e9, solver.getBacktracks(), solver.getRestarts());
+        System.out.println(new BatchGenerator.Result(0, seed, ids, nanos, solver.getBacktracks(), solver.getRestarts()));
+    }
+
+    public static VoxelTileset fromFile(String name) throws IOException {
+        return read(Paths.get(String.format("res/tiles/%s.voxels", name)));
+    }
+
+    public static VoxelTileset read(Path path) throws IOException {
+        VoxelTileset tileset = new VoxelTileset();
+        Map<String, Integer> labels = new HashMap<>();
+        try (BufferedReader in = Files.newBufferedReader(path)) {
+            int lineNumber = 0;
+            for (String line; (line = in.readLine()) != null; ) {
+                lineNumber++;
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] fields = line.split("\\s+");
+                int faces = Stencil.CUBE.directions();
+                if (fields.length != 3 + faces)
+                    throw new IOException(String.format("%s:%d: expected <name> <weight> <rotations> and %d sockets",
+                            path, lineNumber, faces));
+                int weight, rotations;
+                try {
+                    weight = Integer.parseInt(fields[1]);
+                    rotations = Integer.parseInt(fields[2]);
+                } catch (NumberFormatException e) {
+                    throw new IOException(String.format("%s:%d: %s", path, lineNumber, e.getMessage()));
+                }
+                if (weight <= 0 || (rotations != 1 && rotations != 2 && rotations != 4))
+                    throw new IOException(String.format("%s:%d: invalid weight %d or rotations %d", path, lineNumber,
+                            weight, rotations));
+                int[] socket = new int[faces];
+                for (int face = 0; face < faces; face++)
+                    socket[face] = labels.computeIfAbsent(fields[3 + face], l -> labels.size());
+                for (int turn = 0; turn < rotations; turn++) {
+                    tileset.add(turn == 0 ? fields[0] : fields[0] + turn, weight, socket);
+                    socket = turned(socket);
+                }
+            }
+        }
+        if (tileset.names.isEmpty())
+            throw new IOException(path + " holds no voxels");
+        return tileset;
+    }
+
+    /**
+     * @return the sockets of a voxel turned a quarter clockwise, seen from above
+     */
+    private static int[] turned(int[] sockets) {
+        int[] turned = sockets.clone();
+        turned[Stencil.RIGHT] = sockets[Stencil.TOP];
+        turned[Stencil.BOTTOM] = sockets[Stencil.RIGHT];
+        turned[Stencil.LEFT] = sockets[Stencil.BOTTOM];
+        turned[Stencil.TOP] = sockets[Stencil.LEFT];
+        return turned;
+    }
+
+    private void add(String name, int weight, int[] sockets) {
+        names.add(name);
+        weights.add(weight);
+        this.sockets.add(sockets);
+    }
+
+    public RuleSet getRules() {
+        if (rules == null) {
+            int n = names.size();
+            int[] weights = new int[n];
+            for (int id = 0; id < n; id++)
+                weights[id] = this.weights.get(id);
+            rules = RuleSet.compile(Stencil.CUBE, sockets.toArray(new int[0][]), weights, names.toArray(new String[0]));
+        }
+        return rules;
+    }
+}
@@ -2,20 +2,31 @@ package wfc;
 
 import java.awt.*;
 import java.awt.event.*;
-import java.util.ArrayList;
-
-import static wfc.WaveFunctionCollapse.rnd;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 
 public class WaveCollapseProvider implements MouseListener, MouseMotionListener, KeyListener {
+    // Cells around an edit that are solved again, the solver widens it when that is not enough
+    private static final int REPAIR_RADIUS = 2;
+
     private final TextureMap tm;
+    private final Solver solver;
+    private final Runnable changed;
     private Wave mouseSelectedWave;
     private int mouseSelectedX, mouseSelectedY;
     private final int w;
 
-    public WaveCollapseProvider(TextureMap tm) {
+    /**
+     * @param cellSize side of a drawn cell in pixels
+     * @param changed  called after every event that may have changed the grid or the selection
+     */
+    public WaveCollapseProvider(TextureMap tm, Solver solver, int cellSize, Runnable changed) {
         this.tm = tm;
+        this.solver = solver;
+        this.changed = changed;
         mouseSelectedWave = null;
-        w = tm.getTextureWidth();
+        w = cellSize;
     }
 
     public void paint(Graphics2D g2d) {
@@ -30,37 +41,51 @@ public class WaveCollapseProvider implements MouseListener, MouseMotionListener,
         g2d.translate(-mouseSelectedWave.getX() * w, -mouseSelectedWave.getY() * w);
     }
 
+    /**
+     * @return the area the selection highlight covers, or null without a selection
+     */
+    public Rectangle getSelectionBounds() {
+        if (mouseSelectedWave == null) return null;
+        return new Rectangle(mouseSelectedWave.getX() * w - 1, mouseSelectedWave.getY() * w - 1, w + 2, w + 2);
+    }
+
     public void collapseRandomWave() {
-        Integer lowestRealities = null;
-        for (Wave w : Wave.allWaves) {
-            if (w.isCollapsed()) continue;
-            int s = w.realities.size();
-            if (lowestRealities == null || s < lowestRealities)
-                lowestRealities = s;
-        }
-        if (lowestRealities == null) return;
-        System.out.format("Lowest entropy: %d%n", lowestRealities);
-        ArrayList<Wave> nextOne = new ArrayList<>();
-        for (Wave w : Wave.allWaves) {
-            if (w.realities.size() == lowestRealities && !w.isCollapsed())
-                nextOne.add(w);
-        }
-        int i = (int) Math.floor(rnd.nextDouble() * nextOne.size());
-        Wave w = nextOne.get(i);
-        System.out.format("Chose Wave %s%n", w);
+        Wave w = solver.nextWave();
+        if (w == null) return;
         w.collapse();
     }
 
     @Override
     public void mouseClicked(MouseEvent e) {
         if (mouseSelectedWave == null) return;
-        System.out.println(e.getButton());
-        if (e.getButton() == MouseEvent.BUTTON3) {
-            mouseSelectedWave.collapseInto("Empty");
+        if (e.getButton() == MouseEvent.BUTTON3)
+            paintEmpty(mouseSelectedWave);
+        else if (e.getButton() == MouseEvent.BUTTON1)
+            collapseToCoords(mouseSelectedWave, mouseSelectedX, mouseSelectedY);
+        changed.run();
+    }
+
+    /**
+     * Collapses an uncertain wave into Empty, and repairs the cells around a collapsed one to make it Empty.
+     */
+    private void paintEmpty(Wave wave) {
+        if (!wave.isCollapsed()) {
+            wave.collapseInto("Empty");
             return;
         }
-        if (e.getButton() == MouseEvent.BUTTON1)
-            mouseSelectedWave.collapseToCoords(mouseSelectedX, mouseSelectedY);
+        Reality empty = tm.realitiesByName.get("Empty");
+        if (empty == null || wave.getIds()[0] == empty.id) return;
+        if (!solver.repair(wave.getX(), wave.getY(), REPAIR_RADIUS, tm.getRules().singleton(empty.id)))
+            System.err.format("Cannot make (%d,%d) Empty%n", wave.getX(), wave.getY());
+    }
+
+    private void collapseToCoords(Wave wave, int x, int y) {
+        for (int id : wave.getIds()) {
+            TextureMap.Texture t = tm.realities.get(id).getTexture();
+            if (t.getSourceX() == x && t.getSourceY() == y) {
+                wave.collapseInto(id);
+            }
+        }
     }
 
     @Override
@@ -86,22 +111,22 @@ public class WaveCollapseProvider implements MouseListener, MouseMotionListener,
     @Override
     public void mouseDragged(MouseEvent e) {
         setMouseselectedWave(e);
+        if (mouseSelectedWave == null) return;
         final int MB3Down = MouseEvent.getMaskForButton(MouseEvent.BUTTON3);
         final int MB1Down = MouseEvent.getMaskForButton(MouseEvent.BUTTON1);
 
-        if (!mouseSelectedWave.isCollapsed()) {
-            if ((e.getModifiersEx() & MB3Down) != 0)
-                mouseSelectedWave.collapseInto("Empty");
-            else if ((e.getModifiersEx() & MB1Down) != 0)
-                mouseSelectedWave.collapse();
-        }
+        if ((e.getModifiersEx() & MB3Down) != 0)
+            paintEmpty(mouseSelectedWave);
+        else if ((e.getModifiersEx() & MB1Down) != 0 && !mouseSelectedWave.isCollapsed())
+            mouseSelectedWave.collapse();
+        changed.run();
     }
 
 
 
     private void setMouseselectedWave(MouseEvent e) {
         int i = e.getX() / w, j = e.getY() / w;
-        mouseSelectedWave = Wave.at(i, j);
+        mouseSelectedWave = solver.getContext().at(i, j);
         if (mouseSelectedWave == null || mouseSelectedWave.isCollapsed()) return;
         int _i = e.getX() % w, _j = e.getY() % w;
         mouseSelectedX = (tm.getTilemapCols() * _i) / w;
@@ -111,6 +136,7 @@ public class WaveCollapseProvider implements MouseListener, MouseMotionListener,
     @Override
     public void mouseMoved(MouseEvent e) {
         setMouseselectedWave(e);
+        changed.run();
     }
 
     @Override
@@ -121,6 +147,22 @@ public class WaveCollapseProvider implements MouseListener, MouseMotionListener,
     public void keyPressed(KeyEvent e) {
         if(e.getKeyCode() == KeyEvent.VK_SPACE)
             collapseRandomWave();
+        if (e.getKeyCode() == KeyEvent.VK_L)
+            saveDecisionLog();
+        if (e.getKeyCode() == KeyEvent.VK_U && mouseSelectedWave != null)
+            solver.repair(mouseSelectedWave.getX(), mouseSelectedWave.getY(), REPAIR_RADIUS, null);
+        changed.run();
+    }
+
+    private void saveDecisionLog() {
+        DecisionLog log = solver.getDecisionLog();
+        String name = String.format("decisions-%d.wfcl", log.getSeed());
+        try (OutputStream out = new FileOutputStream(name)) {
+            log.write(out);
+            System.out.format("Saved %d decisions to %s%n", log.size(), name);
+        } catch (IOException ex) {
+            System.err.format("Cannot save decisions to %s: %s%n", name, ex.getMessage());
+        }
     }
 
     @Override
@@ -8,22 +8,32 @@ import java.io.IOException;
 import java.util.Random;
 
 public class WaveFunctionCollapse extends JPanel {
-    public static SimulationState STATE;
-    public static Random rnd = new Random();
+    // Larger grids are drawn with cells smaller than their textures to fit
+    private static final int MAX_WINDOW_SIZE = 1024;
+
+    private final SimulationState state;
     private final TextureMap tm;
+    private final Solver solver;
+    private final WaveRenderer renderer;
     private final WaveCollapseProvider collapser;
     private JFrame window;
 
     public static void main(String[] args) throws IOException {
-        new WaveFunctionCollapse(8, "Platformer").begin();
+        String tilemap = args.length > 0 ? args[0] : "Platformer";
+        int dim = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : new Random().nextLong();
+        new WaveFunctionCollapse(dim, tilemap, seed).begin();
     }
 
-    public WaveFunctionCollapse(int dim, String tilemap) throws IOException {
+    public WaveFunctionCollapse(int dim, String tilemap, long seed) throws IOException {
         tm = TextureMap.fromFileConfig(tilemap);
-        STATE = new SimulationState();
-        collapser = new WaveCollapseProvider(tm);
-        setupGraphics(dim * tm.getTextureWidth(), dim * tm.getTextureWidth());
-        Wave.initSpace(dim, tm);
+        state = new SimulationState();
+        System.err.format("Seed %d%n", seed);
+        solver = new Solver(tm.getRules(), new SolveOptions(dim, dim, seed).recordDecisions(true).trackPropagations(true));
+        int cellSize = Math.min(tm.getTextureWidth(), Math.max(1, MAX_WINDOW_SIZE / dim));
+        renderer = new WaveRenderer(tm, cellSize);
+        collapser = new WaveCollapseProvider(tm, solver, cellSize, this::refresh);
+        setupGraphics(dim * cellSize, dim * cellSize);
     }
 
 
@@ -33,7 +43,7 @@ public class WaveFunctionCollapse extends JPanel {
         window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         window.setLocationRelativeTo(null);
         window.setResizable(false);
-        window.addKeyListener(STATE);
+        window.addKeyListener(state);
         window.addKeyListener(collapser);
 
         this.setSize(width, height);
@@ -49,6 +59,24 @@ public class WaveFunctionCollapse extends JPanel {
 
     int frames;
     long nowMillis, lastMillis;
+    private Rectangle lastSelection;
+
+    /**
+     * Repaints only the cells that changed and the old and new selection, instead of the whole panel.
+     */
+    private void refresh() {
+        if (state.inspectTiles) return;
+        Rectangle damaged = renderer.update(solver.getContext(), state.isDebug());
+        if (damaged != null)
+            repaint(damaged);
+        Rectangle selection = collapser.getSelectionBounds();
+        // The highlight inside the selected cell moves with the mouse, so the selection is always repainted
+        if (lastSelection != null && !lastSelection.equals(selection))
+            repaint(lastSelection);
+        if (selection != null)
+            repaint(selection);
+        lastSelection = selection;
+    }
 
     @Override
     public void paint(Graphics g) {
@@ -62,14 +90,13 @@ public class WaveFunctionCollapse extends JPanel {
         }
 
         Graphics2D g2d = (Graphics2D) g;
-        if (STATE.inspectTiles) {
-            TextureMap.getSocketProvider().paintSockets(g2d, 50, 100, tm.realities.get(STATE.realityInspectCounter));
+        if (state.inspectTiles) {
+            tm.getSocketProvider().paintSockets(g2d, 50, 100, tm.realities.get(state.realityInspectCounter));
         } else {
-            for (Wave wave : Wave.allWaves)
-                wave.paint(g2d);
+            renderer.update(solver.getContext(), state.isDebug());
+            renderer.paint(g2d);
             collapser.paint(g2d);
         }
-        repaint();
     }
 
     class SimulationState implements KeyListener {
@@ -99,7 +126,10 @@ public class WaveFunctionCollapse extends JPanel {
                 case KeyEvent.VK_B:
                     realityInspectCounter = (realitySize + realityInspectCounter - 1) % realitySize;
                     break;
+                default:
+                    return;
             }
+            repaint();
         }
 
         @Override
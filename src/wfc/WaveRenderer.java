@@ -0,0 +1,163 @@
+package wfc;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.*;
+
+/**
+ * Keeps the whole grid drawn in a back buffer and only redraws the cells that changed since the last frame. Mosaics of
+ * uncertain cells are cached per domain, as most uncertain cells share one of a few domains.
+ */
+public class WaveRenderer {
+    private static final int CACHED_MOSAICS = 1024;
+    private static final Color BACKGROUND = Color.GRAY;
+
+    private final TextureMap tm;
+    private final int w;
+    private final BufferedImage[] tiles;
+    private final Map<Integer, Color> cmap = new HashMap<>();
+    private final Random rnd = new Random();
+    private final Font debugFont;
+    private final Map<DomainSignature, BufferedImage> mosaics = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<DomainSignature, BufferedImage> eldest) {
+            return size() > CACHED_MOSAICS;
+        }
+    };
+    private BufferedImage buffer;
+    private SolveContext rendered;
+    private boolean renderedDebug;
+
+    /**
+     * @param cellSize side of a drawn cell in pixels, textures are scaled down to it once
+     */
+    public WaveRenderer(TextureMap tm, int cellSize) {
+        this.tm = tm;
+        this.w = cellSize;
+        this.tiles = new BufferedImage[tm.realities.size()];
+        this.debugFont = new Font("Roboto", Font.PLAIN, Math.max(1, 30 * cellSize / tm.getTextureWidth()));
+    }
+
+    private BufferedImage getTile(int id) {
+        if (tiles[id] == null) {
+            BufferedImage image = tm.realities.get(id).getImage();
+            if (w != tm.getTextureWidth()) {
+                BufferedImage scaled = new BufferedImage(w, w, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = scaled.createGraphics();
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.drawImage(image, 0, 0, w, w, null);
+                g.dispose();
+                image = scaled;
+            }
+            tiles[id] = image;
+        }
+        return tiles[id];
+    }
+
+    Color getRNDColor() {
+        return Color.getHSBColor((float) rnd.nextDouble(), 0.5f, 0.5f);
+    }
+
+    Color getWriteColor(Wave wave) {
+        if (!cmap.containsKey(wave.getLastPropagation())) {
+            cmap.put(wave.getLastPropagation(), getRNDColor());
+        }
+        return cmap.get(wave.getLastPropagation());
+    }
+
+    private String getSocketSetForEdge(Wave wave, int edge) {
+        Set<Integer> allowed = new TreeSet<>();
+        for (int id : wave.getIds())
+            allowed.add(tm.realities.get(id).sockets[edge]);
+        return tm.getSocketProvider().format(allowed);
+    }
+
+    void paintSockets(Graphics2D g, Wave wave) {
+        int x = wave.getX(), y = wave.getY();
+        g.drawString(getSocketSetForEdge(wave, 0), (0.4f + x) * w, (0.2f + y) * w);
+        g.drawString(getSocketSetForEdge(wave, 1), (0.9f + x) * w, (0.6f + y) * w);
+        g.drawString(getSocketSetForEdge(wave, 2), (0.4f + x) * w, (0.8f + y) * w);
+        g.drawString(getSocketSetForEdge(wave, 3), (0.1f + x) * w, (0.6f + y) * w);
+    }
+
+    private BufferedImage getMosaic(SolveContext ctx, int cell) {
+        long[] domain = new long[ctx.rules.words()];
+        ctx.readDomain(cell, domain);
+        DomainSignature signature = new DomainSignature(domain);
+        BufferedImage mosaic = mosaics.get(signature);
+        if (mosaic != null) return mosaic;
+
+        // Draw inCellGrid
+        int cols = tm.getTilemapCols(), rows = tm.getTilemapRows(), tw = tm.getTextureWidth();
+        mosaic = new BufferedImage(w, w, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = mosaic.createGraphics();
+        g.scale((double) w / (cols * tw), (double) w / (rows * tw));
+        for (int id : ctx.ids(cell)) {
+            TextureMap.Texture t = tm.realities.get(id).getTexture();
+            g.drawImage(t.getImage(), t.getSourceX() * tw, t.getSourceY() * tw, null);
+        }
+        g.dispose();
+        mosaics.put(signature, mosaic);
+        return mosaic;
+    }
+
+    private void paintCell(Graphics2D g, SolveContext ctx, int cell, boolean debug) {
+        int x = cell % ctx.getWidth(), y = cell / ctx.getWidth();
+        g.setClip(x * w, y * w, w, w);
+        g.setColor(BACKGROUND);
+        g.fillRect(x * w, y * w, w, w);
+        int id = ctx.collapsed[cell];
+        if (id >= 0)
+            g.drawImage(getTile(id), x * w, y * w, null);
+        else if (ctx.count(cell) > 0)
+            g.drawImage(getMosaic(ctx, cell), x * w, y * w, null);
+        if (debug) {
+            Wave wave = new Wave(ctx, cell);
+            g.setColor(getWriteColor(wave));
+            paintSockets(g, wave);
+            g.drawString(String.format("(%d,%d):%d", x, y, wave.getCount()), (0.2f + x) * w, (0.5f + y) * w);
+        }
+    }
+
+    /**
+     * Brings the back buffer up to date with the context. Switching to another context, as after a restart, or
+     * toggling debug redraws everything.
+     *
+     * @return the area that changed, or null if nothing did
+     */
+    public Rectangle update(SolveContext ctx, boolean debug) {
+        int width = ctx.getWidth() * w, height = ctx.getHeight() * w;
+        boolean full = ctx != rendered || debug != renderedDebug;
+        if (buffer == null || buffer.getWidth() != width || buffer.getHeight() != height) {
+            buffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            full = true;
+        }
+        Graphics2D g = buffer.createGraphics();
+        g.setFont(debugFont);
+        Rectangle damaged;
+        if (full) {
+            ctx.drainDirty(cell -> {
+            });
+            for (int cell = 0; cell < ctx.cells(); cell++)
+                paintCell(g, ctx, cell, debug);
+            rendered = ctx;
+            renderedDebug = debug;
+            damaged = new Rectangle(0, 0, width, height);
+        } else {
+            Rectangle[] union = new Rectangle[1];
+            ctx.drainDirty(cell -> {
+                paintCell(g, ctx, cell, debug);
+                Rectangle r = new Rectangle(cell % ctx.getWidth() * w, cell / ctx.getWidth() * w, w, w);
+                union[0] = union[0] == null ? r : union[0].union(r);
+            });
+            damaged = union[0];
+        }
+        g.dispose();
+        return damaged;
+    }
+
+    public void paint(Graphics2D g) {
+        if (buffer != null)
+            g.drawImage(buffer, 0, 0, null);
+    }
+}
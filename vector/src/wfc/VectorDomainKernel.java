@@ -0,0 +1,54 @@
+package wfc;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Arrays;
+
+/**
+ * {@link DomainKernel} on the Vector API, {@link #LANES} words at a time. Domains shorter than that gain nothing and
+ * take the scalar path, as do the words past the last full vector. Needs {@code --add-modules jdk.incubator.vector}
+ * at compile and run time, without it {@link DomainKernel#INSTANCE} quietly stays scalar.
+ */
+final class VectorDomainKernel extends DomainKernel {
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    @Override
+    void union(long[] domain, long[] rows, int edges, int edge, long[] out) {
+        int words = out.length;
+        if (words < LANES) {
+            super.union(domain, rows, edges, edge, out);
+            return;
+        }
+        int bound = SPECIES.loopBound(words);
+        Arrays.fill(out, 0L);
+        for (int w = 0; w < domain.length; w++)
+            for (long bits = domain[w]; bits != 0; bits &= bits - 1) {
+                int offset = (((w << 6) + Long.numberOfTrailingZeros(bits)) * edges + edge) * words, i = 0;
+                for (; i < bound; i += LANES)
+                    LongVector.fromArray(SPECIES, out, i).or(LongVector.fromArray(SPECIES, rows, offset + i)).intoArray(out, i);
+                for (; i < words; i++)
+                    out[i] |= rows[offset + i];
+            }
+    }
+
+    @Override
+    boolean andNot(long[] a, long[] b, long[] out) {
+        int words = out.length;
+        if (words < LANES)
+            return super.andNot(a, b, out);
+        int bound = SPECIES.loopBound(words);
+        LongVector any = LongVector.zero(SPECIES);
+        for (int i = 0; i < bound; i += LANES) {
+            LongVector v = LongVector.fromArray(SPECIES, a, i).lanewise(VectorOperators.AND_NOT, LongVector.fromArray(SPECIES, b, i));
+            v.intoArray(out, i);
+            any = any.or(v);
+        }
+        long rest = any.reduceLanes(VectorOperators.OR);
+        for (int i = bound; i < words; i++)
+            rest |= out[i] = a[i] & ~b[i];
+        return rest != 0;
+    }
+}